@@ -0,0 +1,277 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Compact map from ids to the time each was last accessed, held outside the heap.
+ *
+ * Access times are recorded to the second. Each entry occupies 24 bytes of direct memory,
+ * and the tables are kept no more than three quarters full, so an index of ten million ids
+ * needs around 320MB outside the heap and adds almost nothing to garbage collection.
+ *
+ * The ids are spread over a number of separately locked tables, each an open addressing
+ * hash table, so that updates of different ids rarely contend. An entry may be marked while
+ * it is being moved elsewhere; any access clears the mark, so the mover can tell whether the
+ * entry was used while it worked.
+ *
+ * @author jonathan
+ */
+public class AccessTimeIndex {
+
+    private static final int STRIPES = 64;
+    private static final int SLOT_SIZE = 24;
+    private static final int ACCESS = 16;
+    private static final int STATE = 20;
+    private static final int EMPTY = 0;
+    private static final int PRESENT = 1;
+    private static final int MARKED = 2;
+    private static final int MAX_SLOTS = 1 << 26;
+    /** Access times are held as seconds since the start of 2020 */
+    private static final long BASE_SECONDS = 1577836800L;
+
+    private static int toSeconds(long millis) {
+        return (int)Math.max(0, Math.min(Integer.MAX_VALUE, millis / 1000 - BASE_SECONDS));
+    }
+
+    private static long hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L ^ low;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /** Operation applied to an entry, under the lock of its table. */
+    @FunctionalInterface
+    private interface SlotOperation {
+        boolean apply(Table table, int slot, boolean created);
+    }
+
+    /** One open addressing hash table; all methods must be called holding its lock. */
+    private static class Table {
+        ByteBuffer data;
+        int mask;
+        int size = 0;
+
+        Table(int slots) {
+            data = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+            mask = slots - 1;
+        }
+
+        long high(int slot) { return data.getLong(slot * SLOT_SIZE); }
+        long low(int slot) { return data.getLong(slot * SLOT_SIZE + 8); }
+        int access(int slot) { return data.getInt(slot * SLOT_SIZE + ACCESS); }
+        int state(int slot) { return data.getInt(slot * SLOT_SIZE + STATE); }
+
+        void set(int slot, int access, int state) {
+            data.putInt(slot * SLOT_SIZE + ACCESS, access).putInt(slot * SLOT_SIZE + STATE, state);
+        }
+
+        int home(long high, long low) {
+            return (int)hash(high, low) & mask;
+        }
+
+        /** Find the slot holding an id, or the empty slot where it would go. */
+        int find(long high, long low) {
+            int slot = home(high, low);
+            while (state(slot) != EMPTY && (high(slot) != high || low(slot) != low)) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void insert(int slot, long high, long low, int access) {
+            data.putLong(slot * SLOT_SIZE, high).putLong(slot * SLOT_SIZE + 8, low);
+            set(slot, access, PRESENT);
+            size++;
+        }
+
+        /** Double the size of the table if it is three quarters full. */
+        boolean grow() {
+            int slots = mask + 1;
+            if (size + 1 <= slots / 4 * 3) return false;
+            if (slots >= MAX_SLOTS) throw new IllegalStateException("Too many ids");
+            Table larger = new Table(slots * 2);
+            for (int slot = 0; slot < slots; slot++) {
+                if (state(slot) == EMPTY) continue;
+                int target = larger.find(high(slot), low(slot));
+                larger.insert(target, high(slot), low(slot), access(slot));
+                larger.set(target, access(slot), state(slot));
+            }
+            data = larger.data;
+            mask = larger.mask;
+            return true;
+        }
+
+        /** Empty a slot, shifting back any later entries which would no longer be found. */
+        void delete(int slot) {
+            set(slot, 0, EMPTY);
+            size--;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (state(next) == EMPTY) return;
+                int home = home(high(next), low(next));
+                boolean movable = slot <= next ? home <= slot || home > next : home <= slot && home > next;
+                if (movable) {
+                    data.putLong(slot * SLOT_SIZE, high(next)).putLong(slot * SLOT_SIZE + 8, low(next));
+                    set(slot, access(next), state(next));
+                    set(next, 0, EMPTY);
+                    slot = next;
+                }
+            }
+        }
+    }
+
+    private final Table[] tables = new Table[STRIPES];
+
+    public AccessTimeIndex(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity / STRIPES * 2, 8) - 1) << 1;
+        for (int i = 0; i < STRIPES; i++) tables[i] = new Table(Math.min(slots, MAX_SLOTS));
+    }
+
+    public AccessTimeIndex() {
+        this(1024);
+    }
+
+    private boolean apply(Id id, boolean create, SlotOperation operation) {
+        ByteBuffer bytes = ByteBuffer.wrap(id.getBytes());
+        long high = bytes.getLong(0);
+        long low = bytes.getLong(8);
+        Table table = tables[(int)(hash(high, low) >>> 58)];
+        synchronized(table) {
+            int slot = table.find(high, low);
+            boolean created = table.state(slot) == EMPTY;
+            if (created) {
+                if (!create) return false;
+                if (table.grow()) slot = table.find(high, low);
+                table.insert(slot, high, low, 0);
+            }
+            return operation.apply(table, slot, created);
+        }
+    }
+
+    /** Record an access to an id, adding it if necessary.
+     *
+     * @param id Id accessed
+     * @param millis Time of access in milliseconds since the epoch
+     */
+    public void put(Id id, long millis) {
+        apply(id, true, (table, slot, created)->{ table.set(slot, toSeconds(millis), PRESENT); return true; });
+    }
+
+    /** Add an id, unless it is already present.
+     *
+     * @param id Id to add
+     * @param millis Time of last access in milliseconds since the epoch
+     */
+    public void putIfAbsent(Id id, long millis) {
+        apply(id, true, (table, slot, created)->{
+            if (created) table.set(slot, toSeconds(millis), PRESENT);
+            return true;
+        });
+    }
+
+    /** Record an access to an id, if it is present.
+     *
+     * Clears any mark on the entry.
+     *
+     * @param id Id accessed
+     * @param millis Time of access in milliseconds since the epoch
+     * @return true if the id is present
+     */
+    public boolean touch(Id id, long millis) {
+        return apply(id, false, (table, slot, created)->{ table.set(slot, toSeconds(millis), PRESENT); return true; });
+    }
+
+    public boolean contains(Id id) {
+        return apply(id, false, (table, slot, created)->true);
+    }
+
+    /** Remove an id.
+     *
+     * @param id Id to remove
+     * @return true if the id was present
+     */
+    public boolean remove(Id id) {
+        return apply(id, false, (table, slot, created)->{ table.delete(slot); return true; });
+    }
+
+    /** Mark an id which has not been accessed since a given time.
+     *
+     * @param id Id to mark
+     * @param cutoff Time in milliseconds since the epoch
+     * @return true if the id is present and was last accessed no later than the cutoff, to the second
+     */
+    public boolean mark(Id id, long cutoff) {
+        return apply(id, false, (table, slot, created)->{
+            if (table.access(slot) > toSeconds(cutoff)) return false;
+            table.set(slot, table.access(slot), MARKED);
+            return true;
+        });
+    }
+
+    /** Remove an id if it has not been accessed since it was marked.
+     *
+     * @param id Id to remove
+     * @return true if the id was removed
+     */
+    public boolean removeMarked(Id id) {
+        return apply(id, false, (table, slot, created)->{
+            if (table.state(slot) != MARKED) return false;
+            table.delete(slot);
+            return true;
+        });
+    }
+
+    /** Get ids which have not been accessed since a given time.
+     *
+     * @param cutoff Time in milliseconds since the epoch
+     * @return ids last accessed no later than the cutoff, to the second
+     */
+    public List<Id> accessedBefore(long cutoff) {
+        int seconds = toSeconds(cutoff);
+        List<Id> result = new ArrayList<>();
+        for (Table table : tables) {
+            synchronized(table) {
+                for (int slot = 0; slot <= table.mask; slot++) {
+                    if (table.state(slot) != EMPTY && table.access(slot) <= seconds) {
+                        byte[] id = new byte[16];
+                        ByteBuffer.wrap(id).putLong(table.high(slot)).putLong(table.low(slot));
+                        result.add(new Id(id));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Table table : tables) {
+            synchronized(table) {
+                size += table.size;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Table table : tables) {
+            synchronized(table) {
+                int slots = table.mask + 1;
+                for (int slot = 0; slot < slots; slot++) table.set(slot, 0, EMPTY);
+                table.size = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AccessTimeIndex(%d)", size());
+    }
+}
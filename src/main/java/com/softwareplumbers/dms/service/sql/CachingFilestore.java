@@ -0,0 +1,284 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Filestore which caches recently read files in memory.
+ *
+ * Wraps another filestore. Files no larger than maxEntrySize are held in direct (off-heap)
+ * buffers after they are first read with get, and the least recently used files are evicted
+ * once the total size of cached files exceeds capacity. Since the data associated with a key
+ * never changes, cached files are only evicted when removed from the underlying filestore.
+ *
+ * @author jonathan
+ * @param <K> key type
+ */
+public class CachingFilestore<K> implements Filestore<K> {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(CachingFilestore.class);
+
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private final Filestore<K> delegate;
+    private final LinkedHashMap<K, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private long capacity = DEFAULT_CAPACITY;
+    private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+    private long size = 0;
+
+    /** Input stream which reads from a byte buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int)Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    public CachingFilestore(Filestore<K> delegate) {
+        this.delegate = delegate;
+    }
+
+    public Filestore<K> getDelegate() {
+        return delegate;
+    }
+
+    /** Set the maximum total size of cached files.
+     *
+     * @param capacity size in bytes (default 64MB)
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /** Set the size of the largest file which will be cached.
+     *
+     * @param maxEntrySize size in bytes (default 1MB)
+     */
+    public void setMaxEntrySize(int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    private void evict() {
+        Iterator<ByteBuffer> eldest = cache.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().capacity();
+            eldest.remove();
+        }
+    }
+
+    private synchronized ByteBuffer lookup(K key) {
+        ByteBuffer result = cache.get(key);
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result.duplicate();
+    }
+
+    private void store(K key, byte[] data) {
+        if (data.length > capacity) return;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        synchronized(this) {
+            ByteBuffer previous = cache.put(key, buffer.asReadOnlyBuffer());
+            if (previous != null) size -= previous.capacity();
+            size += data.length;
+            evict();
+        }
+    }
+
+    private synchronized void evict(K key) {
+        ByteBuffer previous = cache.remove(key);
+        if (previous != null) size -= previous.capacity();
+    }
+
+    @Override
+    public K parseKey(String key) {
+        return delegate.parseKey(key);
+    }
+
+    @Override
+    public K generateKey() {
+        return delegate.generateKey();
+    }
+
+    /** Get data, from the cache if possible.
+     *
+     * On a cache miss, the data is read from the underlying filestore and cached unless
+     * it turns out to be larger than maxEntrySize.
+     */
+    @Override
+    public InputStream get(K key) throws NotFound {
+        LOG.entry(key);
+        ByteBuffer cached = lookup(key);
+        if (cached != null) {
+            bytesServed.addAndGet(cached.remaining());
+            return LOG.exit(new ByteBufferInputStream(cached));
+        }
+        InputStream is = delegate.get(key);
+        try {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            byte[] chunk = new byte[TRANSFER_BUFFER_SIZE];
+            int count = 0;
+            while (head.size() <= maxEntrySize && (count = is.read(chunk)) >= 0) head.write(chunk, 0, count);
+            if (count < 0) {
+                is.close();
+                byte[] data = head.toByteArray();
+                store(key, data);
+                return LOG.exit(new ByteArrayInputStream(data));
+            }
+            return LOG.exit(new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), is));
+        } catch (IOException e) {
+            try { is.close(); } catch (IOException ce) { e.addSuppressed(ce); }
+            NotFound error = new NotFound(key);
+            error.initCause(e);
+            throw LOG.throwing(error);
+        }
+    }
+
+    @Override
+    public InputStream get(K key, long offset, long length) throws NotFound {
+        LOG.entry(key, offset, length);
+        ByteBuffer cached = lookup(key);
+        if (cached == null) return LOG.exit(delegate.get(key, offset, length));
+        int start = (int)Math.min(offset, cached.limit());
+        int end = (int)Math.min(start + length, cached.limit());
+        cached.position(start);
+        cached.limit(end);
+        bytesServed.addAndGet(cached.remaining());
+        return LOG.exit(new ByteBufferInputStream(cached));
+    }
+
+    @Override
+    public long size(K key) throws NotFound {
+        return delegate.size(key);
+    }
+
+    @Override
+    public long transferTo(K key, WritableByteChannel target) throws IOException {
+        LOG.entry(key, target);
+        ByteBuffer cached = lookup(key);
+        if (cached == null) return LOG.exit(delegate.transferTo(key, target));
+        long count = cached.remaining();
+        bytesServed.addAndGet(count);
+        while (cached.hasRemaining()) target.write(cached);
+        return LOG.exit(count);
+    }
+
+    @Override
+    public void put(K key, Document document, StreamInfo iss) {
+        delegate.put(key, document, iss);
+    }
+
+    @Override
+    public Staged<K> stage(InputStreamSupplier iss) throws IOException {
+        return delegate.stage(iss);
+    }
+
+    @Override
+    public Staged<K> stage(K key, InputStreamSupplier iss) throws IOException {
+        return delegate.stage(key, iss);
+    }
+
+    @Override
+    public void link(Document document, K from, K to) throws NotFound {
+        delegate.link(document, from, to);
+    }
+
+    @Override
+    public void remove(K key) throws NotFound {
+        LOG.entry(key);
+        evict(key);
+        delegate.remove(key);
+        LOG.exit();
+    }
+
+    /** Remove all files from the cache. */
+    public synchronized void clear() {
+        cache.clear();
+        size = 0;
+    }
+
+    public synchronized int getEntries() {
+        return cache.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double)hitCount / total;
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Entries: %d, Bytes: %d, Hits: %d, Misses: %d, Hit ratio: %.2f, Bytes served: %d",
+            getEntries(), getSize(), getHits(), getMisses(), getHitRatio(), getBytesServed());
+    }
+}
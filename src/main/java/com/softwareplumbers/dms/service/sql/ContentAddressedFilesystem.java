@@ -0,0 +1,179 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Local filesystem which stores each distinct file only once.
+ * 
+ * Files are stored in a 'blobs' directory under a name derived from the digest and length
+ * calculated when the file was uploaded. Each key is then a hard link to the appropriate
+ * blob, so that get, link and remove work exactly as for LocalFilesystem, and uploading
+ * a file which is already stored costs only a new directory entry.
+ * 
+ * The filesystem's own link count serves as the reference count for each blob. Removing
+ * the last key for a blob leaves only the entry in the blobs directory; such blobs are
+ * deleted by collectGarbage. If a blob reaches the filesystem's limit on hard links, a
+ * further copy of it is stored and linked instead.
+ * 
+ * Deduplication relies on the uploaded digest; two files with the same digest and length
+ * are assumed to be identical.
+ * 
+ * @author jonathan
+ */
+public class ContentAddressedFilesystem extends LocalFilesystem {
+    
+    private static final XLogger LOG = XLoggerFactory.getXLogger(ContentAddressedFilesystem.class);
+    private static final String BLOBS = "blobs";
+    private static final Duration TEMP_FILE_EXPIRY = Duration.ofHours(1);
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_COPIES = 256;
+    /** Reason given by the JDK for EMLINK */
+    private static final String TOO_MANY_LINKS = "Too many links";
+    
+    public ContentAddressedFilesystem(Path basePath) {
+        super(basePath);
+    }
+    
+    public ContentAddressedFilesystem() {
+        this(Paths.get("/var/tmp/doctane/filestore"));
+    }
+    
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+    
+    private Path toBlobPath(byte[] digest, long length, int copy) {
+        String hex = toHex(digest);
+        String name = hex + "-" + length + (copy == 0 ? "" : "." + copy);
+        return getBasePath().resolve(BLOBS).resolve(hex.substring(0,2)).resolve(hex.substring(2,4)).resolve(name);
+    }
+    
+    private static void store(Path blob, StreamInfo iss) throws IOException {
+        Files.createDirectories(blob.getParent());
+        Path temp = Files.createTempFile(blob.getParent(), blob.getFileName().toString(), TEMP_SUFFIX);
+        try (InputStream is = iss.supplier.get()) {
+            Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Write a blob which does not yet exist. */
+    @FunctionalInterface
+    private interface BlobWriter {
+        void write(Path blob) throws IOException;
+    }
+    
+    private void linkBlob(Path path, byte[] digest, long length, BlobWriter writer) throws IOException {
+        Files.createDirectories(path.getParent());
+        int copy = 0;
+        int retries = 0;
+        while (true) {
+            Path blob = toBlobPath(digest, length, copy);
+            if (Files.notExists(blob)) writer.write(blob);
+            try {
+                Files.createLink(path, blob);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (NoSuchFileException e) {
+                // blob was garbage collected after we checked it existed
+                if (++retries > MAX_RETRIES) throw e;
+            } catch (FileSystemException e) {
+                // only a full link count is worth another copy; anything else would just fail again
+                if (e.getReason() == null || !e.getReason().contains(TOO_MANY_LINKS)) throw e;
+                LOG.debug("Cannot link {}: {}", blob, e.getReason());
+                if (++copy >= MAX_COPIES) throw e;
+            }
+        }
+    }
+
+    @Override
+    public void put(Id version, Document document, StreamInfo iss) {
+        LOG.entry(version, document, "<stream>");
+        try {
+            linkBlob(toPath(version), iss.digest, iss.length, blob->store(blob, iss));
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        LOG.exit();
+    }
+    
+    /** Store staged content by linking the staged file into the blobs directory.
+     * 
+     * If the blob is already stored, the staged file is simply discarded when closed.
+     */
+    @Override
+    protected void commitStaged(Path file, Id key, long length, byte[] digest) throws IOException {
+        LOG.entry(file, key, length, digest);
+        linkBlob(toPath(key), digest, length, blob->{
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.createLink(blob, file);
+            } catch (FileAlreadyExistsException e) {
+                LOG.debug("Blob {} stored concurrently", blob);
+            }
+        });
+        LOG.exit();
+    }
+    
+    private static boolean isUnreferenced(Path blob) {
+        try {
+            if (blob.getFileName().toString().endsWith(TEMP_SUFFIX)) 
+                return Files.getLastModifiedTime(blob).toInstant().isBefore(Instant.now().minus(TEMP_FILE_EXPIRY));
+            return ((Number)Files.getAttribute(blob, "unix:nlink")).intValue() <= 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /** Delete blobs which are no longer referenced by any key.
+     * 
+     * Also removes temporary files left behind by interrupted uploads. Requires a filesystem
+     * which reports link counts through the 'unix' file attribute view.
+     * 
+     * @return The number of files deleted
+     */
+    public int collectGarbage() {
+        LOG.entry();
+        int deleted = 0;
+        for (Path directory : new Path[] { getBasePath().resolve(BLOBS), getStagingPath() }) {
+            if (Files.notExists(directory)) continue;
+            try (Stream<Path> files = Files.walk(directory)) {
+                Iterable<Path> unreferenced = ()->files
+                    .filter(Files::isRegularFile)
+                    .filter(ContentAddressedFilesystem::isUnreferenced)
+                    .iterator();
+                for (Path blob : unreferenced) {
+                    if (Files.deleteIfExists(blob)) deleted++;
+                }
+            } catch (IOException e) {
+                throw LOG.throwing(new UncheckedIOException(e));
+            }
+        }
+        return LOG.exit(deleted);
+    }
+}
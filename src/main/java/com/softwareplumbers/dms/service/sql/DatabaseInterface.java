@@ -33,20 +33,29 @@ import com.softwareplumbers.dms.common.impl.WorkspaceImpl;
 import com.softwareplumbers.dms.service.sql.DocumentDatabase.Operation;
 import com.softwareplumbers.dms.service.sql.DocumentDatabase.Template;
 import com.softwareplumbers.dms.service.sql.DocumentDatabase.EntityType;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.PathResolution;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors.ParameterizedSQL;
 import com.softwareplumbers.dms.NamedRepositoryObject;
 import com.softwareplumbers.dms.RepositoryPath.NamedElement;
 import com.softwareplumbers.dms.RepositoryPath.Version;
 import java.io.Reader;
 import java.io.Writer;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Consumer;
 import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
@@ -65,8 +74,52 @@ import javax.json.JsonWriter;
  */
 public class DatabaseInterface extends AbstractInterface<DocumentDatabase.EntityType, DocumentDatabase.DataType, DocumentDatabase.Operation, DocumentDatabase.Template> {
 
+    private final PathResolution pathResolution;
+    private final PathCache pathCache;
+    private final boolean materializedPaths;
+    private final int walkFetchSize;
+    private final List<RepositoryPath> pendingInvalidations = new ArrayList<>();
+
     public DatabaseInterface(DocumentDatabase db) throws SQLException {
         super(db);
+        this.pathResolution = db.getPathResolution();
+        this.pathCache = db.getPathCache();
+        this.materializedPaths = db.getMaterializedPaths();
+        this.walkFetchSize = db.getWalkFetchSize();
+    }
+    
+    /** Invalidate cached paths at or below the given node.
+     * 
+     * Paths are invalidated immediately and again when the transaction completes, since
+     * other interfaces may cache the previously committed path in the meantime.
+     * 
+     * @param id Id of node
+     */
+    private void invalidatePaths(Id id) throws SQLException {
+        if (pathCache.isEnabled()) {
+            Optional<RepositoryPath> path = getPathTo(id, pathResolution);
+            if (path.isPresent()) {
+                pathCache.invalidate(path.get());
+                pendingInvalidations.add(path.get());
+            }
+        }
+    }
+    
+    private void flushInvalidations() {
+        for (RepositoryPath path : pendingInvalidations) pathCache.invalidate(path);
+        pendingInvalidations.clear();
+    }
+    
+    @Override
+    public void commit() throws SQLException {
+        super.commit();
+        flushInvalidations();
+    }
+    
+    @Override
+    public void close() throws SQLException {
+        super.close();
+        flushInvalidations();
     }
 
     private static final String SAFE_CHARACTERS ="0123456789ABCDEFGHIJKLMNOPQURSTUVWYXabcdefghijklmnopqrstuvwxyz";
@@ -75,6 +128,8 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
     private static final String[] ESCAPE_IN_NAMES = new String[] {"@", "/", "~"};
     private static final int[] CP_ESCAPE_IN_NAMES = Stream.of(ESCAPE_IN_NAMES).mapToInt(s->s.codePointAt(0)).toArray();
     private static final Range NULL_VERSION = Range.equals(Json.createValue(""));
+    private static final String DESCENDANT_WILDCARD = "**";
+    private static final int PATH_BATCH_SIZE = 100;
     private static final RepositoryPath ROOT_PATH = RepositoryPath.ROOT.addId(Id.ROOT_ID.toString());
     private static final Workspace ROOT_WORKSPACE = new WorkspaceImpl(Id.ROOT_ID.toString(), null, RepositoryPath.ROOT, false, Workspace.State.Open, Constants.EMPTY_METADATA, true, LocalData.NONE);
     
@@ -151,8 +206,12 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return RepositoryPathParser.parsePath(tokenizer);
     }
     
+    private static Operation fetchPathToId(PathResolution resolution) {
+        return resolution == PathResolution.TOP_DOWN ? Operation.fetchPathToId : Operation.fetchPathToIdBottomUp;
+    }
+    
     public Optional<RepositoryPath> getBasePath(Id id) throws SQLException {
-        try (Stream<RepositoryPath> names = operations.getStatement(Operation.fetchPathToId)
+        try (Stream<RepositoryPath> names = operations.getStatement(fetchPathToId(pathResolution))
             .set(Types.ID, 1, id)
             .execute(con, rs->toRepositoryPath(rs.getString(1)))
         ) {
@@ -433,6 +492,16 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return templates.getSQL(Template.fetchDocument, query.toExpression(schema.getFormatter(EntityType.VERSION)).sql);
     }
 
+    String getLatestDocumentSearchSQL(Query query) {
+        query = getDBFilterExpression(schema.getFields(EntityType.VERSION), query);
+        return templates.getSQL(Template.fetchLatestDocuments, query.toExpression(schema.getFormatter(EntityType.VERSION)).sql);
+    }
+
+    String getDocumentsByRecencySQL(Query query) {
+        query = getDBFilterExpression(schema.getFields(EntityType.VERSION), query);
+        return templates.getSQL(Template.fetchDocumentsByRecency, query.toExpression(schema.getFormatter(EntityType.VERSION)).sql);
+    }
+
     String getDocumentSearchHistorySQL(Query query) {
         query = getDBFilterExpression(schema.getFields(EntityType.VERSION), query);
         query = query.intersect(Query.from(QualifiedName.of("reference","id"), Range.equals(Param.from("0"))));
@@ -478,11 +547,113 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return templates.getSQL(Template.fetchFolder, getNameExpression(basePath, nameWithPatterns), filter.toExpression(schema.getFormatter(EntityType.FOLDER)).sql);
     }
 
+    static boolean isDescendantWildcard(RepositoryPath.Element element) {
+        if (element.type != RepositoryPath.ElementType.NAME) return false;
+        try {
+            return DESCENDANT_WILDCARD.equals(((RepositoryPath.NamedElement)element).pattern.build(Builders.toUnixWildcard()));
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    static boolean isFixedPath(RepositoryPath path) {
+        if (path.isEmpty()) return true;
+        if (path.part.type == RepositoryPath.ElementType.NAME && !((RepositoryPath.NamedElement)path.part).pattern.isSimple()) return false;
+        return isFixedPath(path.parent);
+    }
+
+    /** Get the folder under which a recursive descendant search should be performed.
+     * 
+     * A descendant search path has the form prefix/** (matching everything below prefix) or
+     * prefix/**&#47;pattern (matching pattern at any depth below prefix), where prefix contains
+     * no wildcards.
+     * 
+     * @param path Search path
+     * @return The prefix, or Optional.empty() if path is not a descendant search
+     */
+    static Optional<RepositoryPath> getDescendantSearchPrefix(RepositoryPath path) {
+        if (path.isEmpty() || path.part.type != RepositoryPath.ElementType.NAME) return Optional.empty();
+        RepositoryPath prefix;
+        if (isDescendantWildcard(path.part))
+            prefix = path.parent;
+        else if (!path.parent.isEmpty() && isDescendantWildcard(path.parent.part))
+            prefix = path.parent.parent;
+        else
+            return Optional.empty();
+        return isFixedPath(prefix) ? Optional.of(prefix) : Optional.empty();
+    }
+
+    Query getDescendantQuery(RepositoryPath path, boolean includeDeleted) {
+        Query result = getVersionQuery(path.part.getVersion());
+        if (!isDescendantWildcard(path.part)) {
+            RepositoryPath.NamedElement pathElement = (RepositoryPath.NamedElement)path.part;
+            try { 
+                result = result.intersect(Query.from("name", Range.like(doubleEscape(pathElement.pattern.build(Builders.toUnixWildcard())))));
+            } catch (PatternSyntaxException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (!includeDeleted) 
+            result = result.intersect(Query.from("deleted", Range.equals(JsonValue.FALSE)));
+        return result;
+    }
+
+    String getDescendantCriteria(EntityType type, Id ancestor, Query filter, boolean includeDeleted) {
+        String criteria = filter.toExpression(schema.getFormatter(type)).sql 
+            + " AND " + templates.getSQL(Template.descendantsOf, templates.getSQL(Template.uuidExpr, ancestor.toString()));
+        if (!includeDeleted) criteria = criteria + " AND " + templates.getSQL(Template.noDeletedAncestors);
+        return criteria;
+    }
+
+    String searchDescendantLinkSQL(Id ancestor, RepositoryPath path, Query filter, boolean includeDeleted, boolean includeAllVersions) {
+        filter = getDBFilterExpression(schema.getFields(EntityType.LINK), filter);
+        if (!includeAllVersions)
+            filter = filter.intersect(Query.from("current", Range.equals(JsonValue.TRUE)));
+        filter = filter.intersect(getDescendantQuery(path, includeDeleted));
+        String name = templates.getSQL(Template.documentNameExpr, "0", templates.getSQL(Template.ancestorPathExpr, "0"));
+        return templates.getSQL(Template.fetchDocumentLink, name, getDescendantCriteria(EntityType.LINK, ancestor, filter, includeDeleted));
+    }
+
+    String searchDescendantFolderSQL(Id ancestor, RepositoryPath path, Query filter, boolean includeDeleted) {
+        filter = getDBFilterExpression(schema.getFields(EntityType.FOLDER), filter);
+        filter = filter.intersect(getDescendantQuery(path, includeDeleted));
+        String name = templates.getSQL(Template.nameExpr, "0", templates.getSQL(Template.ancestorPathExpr, "0"));
+        return templates.getSQL(Template.fetchFolder, name, getDescendantCriteria(EntityType.FOLDER, ancestor, filter, includeDeleted));
+    }
+
     public Optional<RepositoryPath> getPathTo(Id id) throws SQLException {
-        LOG.entry(id);
+        RepositoryPath cached = pathCache.get(id);
+        if (cached != null) return Optional.of(cached);
+        long generation = pathCache.generation();
+        Optional<RepositoryPath> result = Optional.empty();
+        if (materializedPaths && !id.equals(Id.ROOT_ID)) {
+            try (Stream<RepositoryPath> results = operations.getStatement(Operation.fetchMaterializedPath)
+                .set(Types.ID, 1, id)
+                .execute(con, rs->RepositoryPath.valueOf(rs.getString(1)))) {
+                result = results.findFirst();
+            }
+        }
+        if (!result.isPresent()) result = getPathTo(id, pathResolution);
+        if (result.isPresent()) pathCache.put(id, result.get(), generation);
+        return result;
+    }
+
+    /** Get the path to a node using a specific resolution strategy.
+     * 
+     * TOP_DOWN expands the tree from the root and then filters on the given id, so its cost
+     * grows with the size of the repository. BOTTOM_UP follows parent links from the given
+     * node, so its cost grows only with the depth of the node.
+     * 
+     * @param id Id of node
+     * @param resolution Strategy used to resolve the path
+     * @return The path to the given node, or Optional.empty() if it does not exist
+     * @throws SQLException 
+     */
+    Optional<RepositoryPath> getPathTo(Id id, PathResolution resolution) throws SQLException {
+        LOG.entry(id, resolution);
         if (id.equals(Id.ROOT_ID))
             return LOG.exit(Optional.of(RepositoryPath.ROOT));
-        else try (Stream<RepositoryPath> results = operations.getStatement(Operation.fetchPathToId)
+        else try (Stream<RepositoryPath> results = operations.getStatement(fetchPathToId(resolution))
                 .set(Types.ID, 1, id)
                 .execute(con, rs->RepositoryPath.valueOf(rs.getString(1)))) {
             return LOG.exit(
@@ -491,6 +662,72 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         }
     }
 
+    /** Get the value of the materialized path column for a repository path.
+     * 
+     * Only paths consisting entirely of simple names, with no ids or versions, can be
+     * looked up directly in the materialized path column.
+     * 
+     * @param path Repository path
+     * @return the corresponding value of FULL_PATH, or Optional.empty() if path is not suitable
+     */
+    static Optional<String> getMaterializedPath(RepositoryPath path) {
+        if (path.isEmpty()) return Optional.of("");
+        if (path.part.type != RepositoryPath.ElementType.NAME || path.part.getVersion() != Version.NONE) return Optional.empty();
+        Pattern pattern = ((RepositoryPath.NamedElement)path.part).pattern;
+        if (!pattern.isSimple()) return Optional.empty();
+        String name = Types.NAME.format(pattern);
+        return getMaterializedPath(path.parent).map(parent -> parent.isEmpty() ? name : parent + "/" + name);
+    }
+    
+    /** Update the materialized path and closure table for a newly inserted node.
+     * 
+     * @param id Id of node
+     */
+    private void indexNode(Id id) throws SQLException {
+        operations.getStatement(Operation.updateNodePath)
+            .set(Types.ID, 1, id)
+            .execute(con);
+        operations.getStatement(Operation.createClosure)
+            .set(Types.ID, 1, id)
+            .set(Types.ID, 2, id)
+            .execute(con);
+    }
+    
+    /** Fill in the materialized path for nodes which do not yet have one.
+     * 
+     * Only nodes whose parent already has a materialized path are updated, so repeated
+     * calls work down the tree. Once this returns zero, every node has a path.
+     * 
+     * @param batchSize maximum number of nodes to update
+     * @return number of nodes updated
+     * @throws SQLException 
+     */
+    public int backfillPaths(int batchSize) throws SQLException {
+        LOG.entry(batchSize);
+        operations.getStatement(Operation.initRootPath).execute(con);
+        int updated = operations.getStatement(Operation.backfillPaths)
+            .set(1, batchSize)
+            .execute(con);
+        return LOG.exit(updated);
+    }
+
+    /** Rebuild the closure table from scratch.
+     * 
+     * Needed only when upgrading a repository created before the closure table existed.
+     * 
+     * @return number of rows in the closure table
+     * @throws SQLException 
+     */
+    public int rebuildClosure() throws SQLException {
+        LOG.entry();
+        operations.getStatement(Operation.clearClosure).execute(con);
+        int total = operations.getStatement(Operation.createClosureSelfRows).execute(con);
+        int added;
+        for (int depth = 0; (added = operations.getStatement(Operation.extendClosure).set(1, depth).execute(con)) > 0; depth++)
+            total += added;
+        return LOG.exit(total);
+    }
+
     public String generateUniqueName(Id id, final String nameTemplate) throws SQLException {
 		int separator = nameTemplate.lastIndexOf('.');
         String ext = "";
@@ -595,6 +832,47 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return LOG.exit(result);
     }
 
+    /** Check whether a document query can be evaluated entirely in the database.
+     * 
+     * @param query Query on documents
+     * @return true if the query has no constraints other than on columns of VIEW_DOCUMENTS
+     */
+    public boolean isDatabaseDocumentQuery(Query query) {
+        return getDBFilterExpression(schema.getFields(EntityType.VERSION), query).equals(query);
+    }
+
+    /** Get the most recent version of each document which matches a query.
+     * 
+     * Only constraints on columns of VIEW_DOCUMENTS are applied, so this should only be
+     * used where isDatabaseDocumentQuery(query) is true.
+     * 
+     * @param query Query on documents
+     * @param mapper Mapper for results
+     * @return Stream of results, one per document
+     * @throws SQLException 
+     */
+    public <T> Stream<T> getLatestDocuments(Query query, Mapper<T> mapper) throws SQLException {
+        LOG.entry(query, mapper);
+        Stream<T> result = FluentStatement.of(getLatestDocumentSearchSQL(query)).execute(database.getDataSource(), mapper);
+        return LOG.exit(result);
+    }
+
+    /** Get every version of every document which matches a query, most recent first.
+     * 
+     * Results are ordered by document id, and then by creation time, newest first. Only
+     * constraints on columns of VIEW_DOCUMENTS are applied.
+     * 
+     * @param query Query on documents
+     * @param mapper Mapper for results
+     * @return Stream of results
+     * @throws SQLException 
+     */
+    public <T> Stream<T> getDocumentsByRecency(Query query, Mapper<T> mapper) throws SQLException {
+        LOG.entry(query, mapper);
+        Stream<T> result = FluentStatement.of(getDocumentsByRecencySQL(query)).execute(database.getDataSource(), mapper);
+        return LOG.exit(result);
+    }
+
     public <T> Optional<RepositoryPath> getBasePath(RepositoryPath path, Mapper<T> mapper) throws SQLException {
         if (mapper == GET_WORKSPACE || mapper == GET_LINK) {
             Optional<RepositoryPath.IdElement> idElement = path.getRootId();
@@ -606,8 +884,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return Optional.of(RepositoryPath.ROOT);
     }
 
-    public <T> T createFolder(Id parentId, Pattern name, Workspace.State state, JsonObject metadata, Mapper<T> mapper) throws SQLException, Exceptions.InvalidWorkspace {
-        LOG.entry(parentId, name, state, metadata);
+    private Id insertFolder(Id parentId, Pattern name, Workspace.State state, JsonObject metadata) throws SQLException {
         Id id = new Id();
         operations.getStatement(Operation.createNode)
             .set(Types.ID, 1, id)
@@ -615,11 +892,18 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.NAME, 3, name)
             .set(4, RepositoryObject.Type.WORKSPACE.toString())
             .execute(con);
+        indexNode(id);
         operations.getStatement(Operation.createFolder)
             .set(Types.ID, 1, id)
             .set(2, state.toString())
             .set(3, clobWriter(metadata))
             .execute(con);
+        return id;
+    }
+
+    public <T> T createFolder(Id parentId, Pattern name, Workspace.State state, JsonObject metadata, Mapper<T> mapper) throws SQLException, Exceptions.InvalidWorkspace {
+        LOG.entry(parentId, name, state, metadata);
+        insertFolder(parentId, name, state, metadata);
 
         RepositoryPath path = RepositoryPath.ROOT.addId(parentId.toString()).add(name);
         ParameterizedSQL sql = this.getFolderSQL(path);
@@ -645,6 +929,16 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             RepositoryPath.IdElement pathId = (RepositoryPath.IdElement)name.part;
             return LOG.exit(Optional.of((T)Id.of(pathId.id)));
         } else {
+            Optional<String> fullPath = materializedPaths && !name.isEmpty() ? getMaterializedPath(name) : Optional.empty();
+            if (fullPath.isPresent()) {
+                ParameterizedSQL criteria = Query.from("fullPath", Range.equals(Param.from("fullPath"))).toExpression(schema.getFormatter(EntityType.FOLDER));
+                try (Stream<T> result = FluentStatement.of(templates.getSQL(Template.fetchFolder, "T0.FULL_PATH", criteria.sql), criteria.parameters)
+                    .set("fullPath", fullPath.get())
+                    .execute(con, mapper)
+                ) {
+                    return LOG.exit(result.findFirst());
+                }
+            }
             Optional<RepositoryPath> basePath = getBasePath(name, mapper);
             if (!basePath.isPresent()) return LOG.exit(Optional.empty());
             ParameterizedSQL sql = getFolderSQL(name);
@@ -660,18 +954,22 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
 
     public <T> Stream<T> getFolders(RepositoryPath path, Query filter, boolean includeDeleted, Mapper<T> mapper) throws Exceptions.InvalidWorkspace, SQLException {
         LOG.entry(path, mapper);
-        if (path.isEmpty()) {
+        Optional<RepositoryPath> descendantPrefix = getDescendantSearchPrefix(path);
+        if (descendantPrefix.isPresent()) {
+            Optional<Id> ancestor = getFolder(descendantPrefix.get(), GET_VERIFIED_ID);
+            if (!ancestor.isPresent()) return LOG.exit(Stream.empty());
+            checkClosure(ancestor.get(), path);
+            Stream<T> result = FluentStatement
+                .of(searchDescendantFolderSQL(ancestor.get(), path, filter, includeDeleted))
+                .execute(database.getDataSource(), mapper);
+            return LOG.exit(result);
+        } else if (path.isEmpty()) {
             // free search
             Stream<T> result = FluentStatement
                 .of(searchFolderSQL(RepositoryPath.ROOT, path, filter, includeDeleted))
                 .execute(database.getDataSource(), mapper);
             if (mapper == GET_WORKSPACE) {
-                // Can't do this in simple map because of connection issues with deferred execution.
-                // However, not a big deal as the primary use case for this is fetching the links related to a
-                // particular document id; normally a small list.
-                List<T> buffer = result.map(link->(T)getFullPath((Workspace)link)).collect(Collectors.toList());
-                result.close();
-                result = buffer.stream();
+                result = (Stream<T>)getFullPaths((Stream<Workspace>)result);
             }
             return LOG.exit(result);
         } else {
@@ -724,6 +1022,78 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         );
     }
 
+    public static final Mapper<SubtreeNode> GET_SUBTREE_NODE = results -> {
+        Info info = GET_INFO.map(results);
+        RepositoryPath path = toRepositoryPath(results.getString("PATH"));
+        Document document = results.getBytes("DOCUMENT_ID") == null ? null : GET_DOCUMENT.map(results);
+        return new SubtreeNode(info, path, document);
+    };
+    
+    /** Walk all the nodes below a folder with a single query.
+     * 
+     * Nodes are returned in depth-first order, each folder being followed by everything in it.
+     * The contents of published (named version) folders are not included. Rows are fetched
+     * walkFetchSize at a time, so the stream may be arbitrarily large; it must be closed
+     * before this interface is used for another query.
+     * 
+     * @param folder Path to folder
+     * @param includeDeleted if true, include deleted nodes and their contents
+     * @param includeAllVersions if true, return every version of each linked document
+     * @return Stream of nodes with full paths, or an empty stream if the folder does not exist
+     * @throws SQLException 
+     */
+    public Stream<SubtreeNode> walkSubtree(RepositoryPath folder, boolean includeDeleted, boolean includeAllVersions) throws SQLException {
+        LOG.entry(folder, includeDeleted, includeAllVersions);
+        Optional<Id> start = getFolder(folder, GET_VERIFIED_ID);
+        if (!start.isPresent()) return LOG.exit(Stream.empty());
+        String sql = templates.getSQL(Template.walkSubtree, 
+            templates.getSQL(Template.uuidExpr, start.get().toString()), 
+            Boolean.toString(includeDeleted).toUpperCase(),
+            Boolean.toString(includeAllVersions).toUpperCase()
+        );
+        PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ResultSet results;
+        try {
+            statement.setFetchSize(walkFetchSize);
+            results = statement.executeQuery();
+        } catch (SQLException e) {
+            statement.close();
+            throw LOG.throwing(e);
+        }
+        Iterator<SubtreeNode> nodes = new Iterator<SubtreeNode>() {
+            Boolean hasNext = null;
+            
+            @Override
+            public boolean hasNext() {
+                try {
+                    if (hasNext == null) hasNext = results.next();
+                    return hasNext;
+                } catch (SQLException e) {
+                    throw LOG.throwing(new RuntimeException(e));
+                }
+            }
+            
+            @Override
+            public SubtreeNode next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                hasNext = null;
+                try {
+                    SubtreeNode node = GET_SUBTREE_NODE.map(results);
+                    return new SubtreeNode(node.info, folder.addAll(node.path), node.document);
+                } catch (SQLException e) {
+                    throw LOG.throwing(new RuntimeException(e));
+                }
+            }
+        };
+        return LOG.exit(StreamSupport.stream(Spliterators.spliteratorUnknownSize(nodes, Spliterator.ORDERED), false).onClose(()->{
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                LOG.catching(e);
+            }
+        }));
+    }
+
     public <T> Optional<T> getOrCreateFolder(Id parentId, Pattern name, boolean optCreate, Mapper<T> mapper) throws SQLException, Exceptions.InvalidWorkspace {
         RepositoryPath path = RepositoryPath.ROOT.addId(parentId.toString()).add(name);
         Optional<T> folder = getFolder(path, mapper);
@@ -735,6 +1105,38 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
 
 
 
+    /** Find the deepest folder which already exists on the given path.
+     * 
+     * If materialized paths are enabled and the path consists of simple names, all the
+     * candidate ancestors are looked up in a single query. Otherwise we walk up the path,
+     * which costs one query per missing folder.
+     * 
+     * @param path Path to search
+     * @return The deepest existing folder, and the path to it 
+     */
+    private Map.Entry<RepositoryPath, Id> getDeepestFolder(RepositoryPath path) throws SQLException, Exceptions.InvalidWorkspace {
+        LOG.entry(path);
+        if (path.isEmpty()) return LOG.exit(new AbstractMap.SimpleImmutableEntry<>(RepositoryPath.ROOT, Id.ROOT_ID));
+        if (materializedPaths && getMaterializedPath(path).isPresent()) {
+            Map<String, RepositoryPath> candidates = new HashMap<>();
+            for (RepositoryPath prefix = path; !prefix.isEmpty(); prefix = prefix.parent)
+                candidates.put(getMaterializedPath(prefix).get(), prefix);
+            String params = String.join(",", Collections.nCopies(candidates.size(), "?"));
+            FluentStatement statement = FluentStatement.of(templates.getSQL(Template.fetchDeepestFolder, params));
+            int index = 1;
+            for (String candidate : candidates.keySet()) statement = statement.set(index++, candidate);
+            try (Stream<Map.Entry<RepositoryPath, Id>> result = statement.execute(con, rs->new AbstractMap.SimpleImmutableEntry<>(candidates.get(rs.getString("FULL_PATH")), new Id(rs.getBytes("ID"))))) {
+                return LOG.exit(result.findFirst().orElse(new AbstractMap.SimpleImmutableEntry<>(RepositoryPath.ROOT, Id.ROOT_ID)));
+            }
+        }
+        for (RepositoryPath prefix = path; !prefix.isEmpty(); prefix = prefix.parent) {
+            Optional<Id> id = getFolder(prefix, GET_ID);
+            if (id.isPresent()) return LOG.exit(new AbstractMap.SimpleImmutableEntry<>(prefix, id.get()));
+            if (prefix.part.type != RepositoryPath.ElementType.NAME) throw LOG.throwing(new Exceptions.InvalidWorkspace(prefix));
+        }
+        return LOG.exit(new AbstractMap.SimpleImmutableEntry<>(RepositoryPath.ROOT, Id.ROOT_ID));
+    }
+
     public <T> Optional<T> getOrCreateFolder(RepositoryPath path, boolean optCreate, Mapper<T> mapper) throws Exceptions.InvalidWorkspace, SQLException {
         LOG.entry(path, optCreate, mapper);
 
@@ -744,17 +1146,26 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             case ID:
                 return LOG.exit(getFolder(path, mapper)); // We can't create a folder without a name
             case NAME:
-                RepositoryPath.NamedElement docPath = (RepositoryPath.NamedElement)path.part;
-                if (path.parent.isEmpty()) {
-                    return LOG.exit(getOrCreateFolder(Id.ROOT_ID, docPath.pattern, optCreate, mapper));
-                } else {
-                    Optional<Id> parentId = getOrCreateFolder(path.parent, optCreate, GET_ID);
-                    if (parentId.isPresent()) {
-                        return LOG.exit(getOrCreateFolder(parentId.get(), docPath.pattern, optCreate, mapper));
-                    } else {
-                        throw LOG.throwing(new Exceptions.InvalidWorkspace(path.parent));
-                    }
+                // Usually the folder exists, in which case a single query is enough
+                Optional<T> folder = getFolder(path, mapper);
+                if (folder.isPresent()) return LOG.exit(folder);
+                if (!optCreate) {
+                    if (path.parent.isEmpty() || getFolder(path.parent, GET_ID).isPresent()) return LOG.exit(Optional.empty());
+                    throw LOG.throwing(new Exceptions.InvalidWorkspace(path.parent));
+                }
+                Map.Entry<RepositoryPath, Id> existing = getDeepestFolder(path.parent);
+                List<Pattern> missing = new ArrayList<>();
+                for (RepositoryPath prefix = path.parent; prefix.size() > existing.getKey().size(); prefix = prefix.parent) {
+                    if (prefix.part.type != RepositoryPath.ElementType.NAME) throw LOG.throwing(new Exceptions.InvalidWorkspace(prefix));
+                    missing.add(((RepositoryPath.NamedElement)prefix.part).pattern);
+                }
+                Collections.reverse(missing);
+                Id parentId = existing.getValue();
+                for (Pattern name : missing) {
+                    parentId = insertFolder(parentId, name, Workspace.State.Open, JsonObject.EMPTY_JSON_OBJECT);
                 }
+                RepositoryPath.NamedElement docPath = (RepositoryPath.NamedElement)path.part;
+                return LOG.exit(Optional.of(createFolder(parentId, docPath.pattern, Workspace.State.Open, JsonObject.EMPTY_JSON_OBJECT, mapper)));
             default:
                 throw LOG.throwing(new Exceptions.InvalidWorkspace(path));
         }
@@ -779,29 +1190,13 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.NAME, 3, docPart.pattern)
             .set(4, RepositoryObject.Type.WORKSPACE.toString())
             .execute(con);
+        indexNode(id);
         operations.getStatement(Operation.copyFolder)
             .set(Types.ID, 1, id)
             .set(Types.ID, 2, idSrc)
             .execute(con);
 
-        Iterable<Info> children = operations.getStatement(Operation.fetchChildren)
-            .set(Types.ID, 1, idSrc)
-            .execute(con, GET_INFO)
-            .collect(Collectors.toList());
-        for (Info child : children) {
-            RepositoryPath srcPath = RepositoryPath.ROOT.addId(idSrc.toString()).add(child.name);
-            RepositoryPath tgtPath = RepositoryPath.ROOT.addId(id.toString()).add(child.name);
-            switch(child.type) {
-                case WORKSPACE:
-                    copyFolder(srcPath, tgtPath, false, GET_ID);
-                    break;
-                case DOCUMENT_LINK:
-                    copyDocumentLink(srcPath, tgtPath, false, GET_ID);
-                    break;
-                default:
-                    throw LOG.throwing(new RuntimeException("don't know how to copy " + child.type));
-            }
-        }
+        copyChildren(idSrc, id, false);
         RepositoryPath resultPath = RepositoryPath.ROOT.addId(folderId.toString()).add(docPart);
         ParameterizedSQL sql = getFolderSQL(resultPath);
         try (Stream<T> results = FluentStatement.of(sql.sql, sql.parameters)
@@ -826,16 +1221,22 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         if (targetPath.part.type != RepositoryPath.ElementType.NAME) throw LOG.throwing(new Exceptions.InvalidObjectName(targetPath));
         RepositoryPath.NamedElement linkName = (RepositoryPath.NamedElement)targetPath.part;
 
-        operations.getStatement(Operation.purgeChild)
+        operations.getStatement(Operation.purgeChildClosure)
+            .set(Types.ID, 1, folderId)
+            .set(Types.NAME, 2, linkName.pattern)
+            .execute(con);
+        int purged = operations.getStatement(Operation.purgeChild)
             .set(Types.ID, 1, folderId)
             .set(Types.NAME, 2, linkName.pattern)
             .execute(con);
+        if (purged > 0) invalidatePaths(folderId);
         operations.getStatement(Operation.createNode)
             .set(Types.ID, 1, id)
             .set(Types.ID, 2, folderId)
             .set(Types.NAME, 3, linkName.pattern)
             .set(4, RepositoryObject.Type.DOCUMENT_LINK.toString())
             .execute(con);
+        indexNode(id);
         operations.getStatement(Operation.copyLink)
             .set(Types.ID, 1, id)
             .set(Types.ID, 2, idSrc)
@@ -855,33 +1256,232 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         }
     }
 
-    public void copy(Id nodeId, Id newParentId) throws SQLException {
-        LOG.entry(nodeId, newParentId);
-        Id newId = new Id();
-        operations.getStatement(Operation.copyNode)
-            .set(Types.ID, 1, newId)
-            .set(Types.ID, 2, newParentId)
-            .set(Types.ID, 3, nodeId)
+    /** Check whether every node has closure rows.
+     * 
+     * The closure is incomplete in a repository upgraded from a version without it, until
+     * rebuildClosure has been run. This scans the whole NODES table.
+     * 
+     * @return true if every node has closure rows
+     * @throws SQLException 
+     */
+    public boolean isClosureComplete() throws SQLException {
+        try (Stream<Integer> count = operations.getStatement(Operation.countNodesWithoutClosure).execute(con, rs->rs.getInt(1))) {
+            return count.findFirst().orElse(0) == 0;
+        }
+    }
+    
+    /** Refuse a descendant search below a node with no closure rows.
+     * 
+     * Nodes are created with closure rows and cannot be moved without them, so if the
+     * ancestor has its own row, so do all of its descendants. The update scripts give the
+     * root a row before any others exist, so a search from the root checks every node.
+     */
+    private void checkClosure(Id ancestorId, RepositoryPath path) throws SQLException {
+        boolean built = Id.ROOT_ID.equals(ancestorId) ? isClosureComplete() : hasClosureRow(ancestorId, ancestorId);
+        if (!built) throw LOG.throwing(new IllegalStateException("Node closure has not been built; run rebuildClosure before searching " + path));
+    }
+    
+    private boolean hasClosureRow(Id ancestorId, Id descendantId) throws SQLException {
+        try (Stream<Integer> depth = operations.getStatement(Operation.fetchClosureDepth)
+            .set(Types.ID, 1, ancestorId)
+            .set(Types.ID, 2, descendantId)
+            .execute(con, rs->rs.getInt(1))) {
+            return depth.findFirst().isPresent();
+        }
+    }
+    
+    /** Purge deleted nodes with the given name, so that another node can take their place.
+     * 
+     * Only nodes without children are purged, together with their folder, link, and closure rows.
+     * 
+     * @param folderId Id of parent folder
+     * @param name Name of child
+     * @return false if a deleted node with children has the given name, in which case nothing is purged
+     * @throws SQLException 
+     */
+    private boolean purgeDeletedLeaves(Id folderId, Pattern name) throws SQLException {
+        LOG.entry(folderId, name);
+        List<Id> deleted;
+        try (Stream<Id> results = operations.getStatement(Operation.fetchDeletedChildren)
+            .set(Types.ID, 1, folderId)
+            .set(Types.NAME, 2, name)
+            .execute(con, GET_ID)) {
+            deleted = results.collect(Collectors.toList());
+        }
+        for (Id child : deleted) {
+            try (Stream<Integer> count = operations.getStatement(Operation.fetchChildCount)
+                .set(Types.ID, 1, child)
+                .execute(con, rs->rs.getInt(1))) {
+                if (count.findFirst().orElse(0) > 0) return LOG.exit(false);
+            }
+        }
+        for (Id child : deleted) {
+            for (Operation purge : new Operation[] { Operation.purgeNodeClosure, Operation.purgeFolder, Operation.purgeLink, Operation.purgeNode }) {
+                operations.getStatement(purge)
+                    .set(Types.ID, 1, child)
+                    .execute(con);
+            }
+        }
+        return LOG.exit(true);
+    }
+
+    /** Move a node to a new parent and/or name without copying it.
+     * 
+     * Any deleted node without children already at the target is purged first; the NODE_NAME 
+     * index rejects the move if a live node is already there. Materialized paths and closure rows
+     * for the whole subtree are updated with a fixed number of statements, so the move is refused
+     * if the node has no closure rows (i.e. rebuildClosure has not been run since upgrading).
+     * 
+     * @param id Id of node to move
+     * @param folderId Id of new parent folder
+     * @param targetPath New path for node; only the final name element is used
+     * @throws SQLException 
+     * @throws InvalidWorkspace if the new parent is the node itself or one of its descendants,
+     * or if a deleted folder with children is already at the target
+     * @throws InvalidObjectName if the target path does not end in a name
+     * @throws IllegalStateException if the closure table has not been built for the node
+     */
+    private void moveNode(Id id, Id folderId, RepositoryPath targetPath) throws SQLException, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName {
+        LOG.entry(id, folderId, targetPath);
+        if (targetPath.part.type != RepositoryPath.ElementType.NAME) throw LOG.throwing(new Exceptions.InvalidObjectName(targetPath));
+        Pattern name = ((RepositoryPath.NamedElement)targetPath.part).pattern;
+        if (!hasClosureRow(id, id)) throw LOG.throwing(new IllegalStateException("Node closure has not been built; run rebuildClosure before moving " + id));
+        if (hasClosureRow(id, folderId)) throw LOG.throwing(new Exceptions.InvalidWorkspace(targetPath.parent));
+        Optional<String> oldPath;
+        try (Stream<String> results = operations.getStatement(Operation.fetchMaterializedPath)
+            .set(Types.ID, 1, id)
+            .execute(con, rs->rs.getString(1))) {
+            oldPath = results.findFirst();
+        }
+        if (!purgeDeletedLeaves(folderId, name)) throw LOG.throwing(new Exceptions.InvalidWorkspace(targetPath));
+        invalidatePaths(id);
+        operations.getStatement(Operation.detachClosure)
+            .set(Types.ID, 1, id)
+            .set(Types.ID, 2, id)
             .execute(con);
-        operations.getStatement(Operation.copyLink)
-            .set(Types.ID, 1, newId)
-            .set(Types.ID, 2, nodeId)
+        operations.getStatement(Operation.moveNode)
+            .set(Types.ID, 1, folderId)
+            .set(Types.NAME, 2, name)
+            .set(Types.ID, 3, id)
             .execute(con);
-        operations.getStatement(Operation.copyFolder)
-            .set(Types.ID, 1, newId)
-            .set(Types.ID, 2, nodeId)
+        operations.getStatement(Operation.attachClosure)
+            .set(Types.ID, 1, id)
+            .set(Types.ID, 2, folderId)
             .execute(con);
-        Iterable<Id> children = operations.getStatement(Operation.fetchChildren)
-            .set(Types.ID, 1, nodeId)
-            .execute(con, GET_ID)
-            .collect(Collectors.toList());
-        for (Id child : children) {
-            copy(child, newId);
+        operations.getStatement(Operation.updateNodePath)
+            .set(Types.ID, 1, id)
+            .execute(con);
+        if (oldPath.isPresent()) {
+            operations.getStatement(Operation.moveDescendantPaths)
+                .set(Types.ID, 1, id)
+                .set(2, oldPath.get())
+                .set(Types.ID, 3, id)
+                .execute(con);
         }
         LOG.exit();
     }
 
-    public void publishChild(Id nodeId, Id newParentId) throws SQLException {
+    public <T> T moveFolder(RepositoryPath sourcePath, RepositoryPath targetPath, boolean optCreate, Mapper<T> mapper) throws SQLException, Exceptions.InvalidObjectName, Exceptions.InvalidWorkspace {
+        LOG.entry(sourcePath, targetPath, optCreate, mapper);
+        Id idSrc = getFolder(sourcePath, GET_VERIFIED_ID)
+            .orElseThrow(()->LOG.throwing(new Exceptions.InvalidWorkspace(sourcePath)));
+        Id folderId = getOrCreateFolder(targetPath.parent, optCreate, GET_ID)
+            .orElseThrow(()->LOG.throwing(new Exceptions.InvalidWorkspace(targetPath.parent)));
+        moveNode(idSrc, folderId, targetPath);
+
+        RepositoryPath resultPath = RepositoryPath.ROOT.addId(folderId.toString()).add((RepositoryPath.NamedElement)targetPath.part);
+        ParameterizedSQL sql = getFolderSQL(resultPath);
+        try (Stream<T> results = FluentStatement.of(sql.sql, sql.parameters)
+            .set(1, getBasePath(resultPath, mapper).orElseThrow(()->LOG.throwing(new Exceptions.InvalidWorkspace(resultPath))).toString())
+            .set(Types.PATH, "path", resultPath)
+            .execute(con, mapper)
+        ) {
+            return LOG.exit(
+                results.findFirst()
+                .orElseThrow(()->LOG.throwing(new RuntimeException("returned no results"))));
+        }
+    }
+
+    public <T> T moveDocumentLink(RepositoryPath sourcePath, RepositoryPath targetPath, boolean optCreate, Mapper<T> mapper) throws SQLException, Exceptions.InvalidObjectName, Exceptions.InvalidWorkspace {
+        LOG.entry(sourcePath, targetPath, optCreate, mapper);
+        Id idSrc = getDocumentLink(sourcePath, GET_ID)
+            .orElseThrow(()->LOG.throwing(new Exceptions.InvalidObjectName(sourcePath)));
+        Id folderId = getOrCreateFolder(targetPath.parent, optCreate, GET_ID)
+            .orElseThrow(()->LOG.throwing(new Exceptions.InvalidWorkspace(targetPath.parent)));
+        moveNode(idSrc, folderId, targetPath);
+
+        RepositoryPath shortResultPath = RepositoryPath.ROOT.addId(folderId.toString()).add((RepositoryPath.NamedElement)targetPath.part);
+        ParameterizedSQL sql = getDocumentLinkSQL(shortResultPath);
+        try (Stream<T> results = FluentStatement.of(sql.sql, sql.parameters)
+            .set(1, getBasePath(shortResultPath, mapper).orElseThrow(()->LOG.throwing(new Exceptions.InvalidWorkspace(shortResultPath))).toString())
+            .set(Types.PATH, "path", shortResultPath)
+            .execute(con, mapper)
+        ) {
+            return LOG.exit(
+                results.findFirst()
+                .orElseThrow(()->LOG.throwing(new RuntimeException("returned no results"))));
+        }
+    }
+
+    /** Copy all descendants of one node to become descendants of another.
+     * 
+     * The subtree is copied with a fixed number of statements per level, rather than per node.
+     * A mapping from old to new node ids is first built in the NODE_COPY table, one level at
+     * a time; nodes, folders and links are then each copied with a single statement. Versions
+     * and deleted flags are copied as they stand.
+     * 
+     * @param nodeId Id of node whose children are to be copied
+     * @param newParentId Id of node which will receive the copies
+     * @param publish if true, copied links are fixed to the current version of their document
+     * @return number of nodes copied
+     * @throws SQLException 
+     */
+    private int copyChildren(Id nodeId, Id newParentId, boolean publish) throws SQLException {
+        LOG.entry(nodeId, newParentId, publish);
+        Id copyId = new Id();
+        operations.getStatement(Operation.createCopyRoot)
+            .set(Types.ID, 1, copyId)
+            .set(Types.ID, 2, nodeId)
+            .set(Types.ID, 3, newParentId)
+            .execute(con);
+        int depth = 0;
+        int total = 0;
+        int mapped;
+        while ((mapped = operations.getStatement(Operation.mapCopyChildren).set(Types.ID, 1, copyId).set(2, depth).execute(con)) > 0) {
+            total += mapped;
+            depth++;
+        }
+        if (total > 0) {
+            operations.getStatement(Operation.copyMappedNodes)
+                .set(Types.ID, 1, copyId)
+                .execute(con);
+            // paths and closure rows depend on those of the parent, so must be built top down
+            for (int level = 1; level <= depth; level++) {
+                operations.getStatement(Operation.updateMappedPaths)
+                    .set(Types.ID, 1, copyId)
+                    .set(2, level)
+                    .execute(con);
+                operations.getStatement(Operation.createMappedClosure)
+                    .set(Types.ID, 1, copyId)
+                    .set(2, level)
+                    .set(Types.ID, 3, copyId)
+                    .set(4, level)
+                    .execute(con);
+            }
+            operations.getStatement(Operation.copyMappedFolders)
+                .set(Types.ID, 1, copyId)
+                .execute(con);
+            operations.getStatement(publish ? Operation.publishMappedLinks : Operation.copyMappedLinks)
+                .set(Types.ID, 1, copyId)
+                .execute(con);
+        }
+        operations.getStatement(Operation.clearCopy)
+            .set(Types.ID, 1, copyId)
+            .execute(con);
+        return LOG.exit(total);
+    }
+
+    public void copy(Id nodeId, Id newParentId) throws SQLException {
         LOG.entry(nodeId, newParentId);
         Id newId = new Id();
         operations.getStatement(Operation.copyNode)
@@ -889,7 +1489,8 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.ID, 2, newParentId)
             .set(Types.ID, 3, nodeId)
             .execute(con);
-        operations.getStatement(Operation.publishLink)
+        indexNode(newId);
+        operations.getStatement(Operation.copyLink)
             .set(Types.ID, 1, newId)
             .set(Types.ID, 2, nodeId)
             .execute(con);
@@ -897,16 +1498,21 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.ID, 1, newId)
             .set(Types.ID, 2, nodeId)
             .execute(con);
-        Iterable<Id> children = operations.getStatement(Operation.fetchChildren)
-            .set(Types.ID, 1, nodeId)
-            .execute(con, GET_ID)
-            .collect(Collectors.toList());
-        for (Id child : children) {
-            copy(child, newId);
-        }
+        copyChildren(nodeId, newId, false);
         LOG.exit();
     }
 
+    /** Publish a frozen copy of a node and its descendants.
+     * 
+     * The copy is materialized with a fixed number of statements per tree level, so the cost
+     * still grows with the size of the subtree. Links in the copy are fixed to the current version
+     * of their document; links which are themselves published versions are not copied again.
+     * 
+     * @param nodeId Id of node to publish
+     * @param version Version name for the published copy
+     * @return Id of the published copy
+     * @throws SQLException 
+     */
     public Id publish(Id nodeId, String version) throws SQLException {
         LOG.entry(nodeId, version);
         Id newId = new Id();
@@ -915,6 +1521,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(2, version)
             .set(Types.ID, 3, nodeId)
             .execute(con);
+        indexNode(newId);
         int links = operations.getStatement(Operation.publishLink)
             .set(Types.ID, 1, newId)
             .set(Types.ID, 2, nodeId)
@@ -923,14 +1530,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.ID, 1, newId)
             .set(Types.ID, 2, nodeId)
             .execute(con);
-
-        Iterable<Id> children = operations.getStatement(Operation.fetchChildren)
-            .set(Types.ID, 1, nodeId)
-            .execute(con, GET_ID)
-            .collect(Collectors.toList());
-        for (Id child : children) {
-            publishChild(child, newId);
-        }
+        copyChildren(nodeId, newId, true);
 
         return LOG.exit(newId);
     }
@@ -944,6 +1544,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
             .set(Types.NAME, 3, name)
             .set(4, RepositoryObject.Type.DOCUMENT_LINK.toString())
             .execute(con);
+        indexNode(id);
         operations.getStatement(Operation.createLink)
             .set(Types.ID, 1, id)
             .set(Types.ID, 2, docId)
@@ -1029,6 +1630,18 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
 
     public <T> Optional<T> getDocumentLink(RepositoryPath path, Mapper<T> mapper) throws SQLException {
         LOG.entry(path, mapper);
+        Optional<String> fullPath = materializedPaths && !path.isEmpty() ? getMaterializedPath(path) : Optional.empty();
+        if (fullPath.isPresent()) {
+            ParameterizedSQL criteria = Query.from("fullPath", Range.equals(Param.from("fullPath")))
+                .intersect(Query.from("current", Range.equals(JsonValue.TRUE)))
+                .toExpression(schema.getFormatter(EntityType.LINK));
+            try (Stream<T> result = FluentStatement.of(templates.getSQL(Template.fetchDocumentLink, "T0.FULL_PATH", criteria.sql), criteria.parameters)
+                .set("fullPath", fullPath.get())
+                .execute(con, mapper)
+            ) {
+                return LOG.exit(result.findFirst());
+            }
+        }
         Optional<RepositoryPath> basePath = getBasePath(path, mapper);
         if (!basePath.isPresent()) return Optional.empty();
         ParameterizedSQL sql = getDocumentLinkSQL(path);
@@ -1042,6 +1655,81 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         }
     }
 
+    /** Get the paths to several nodes at once.
+     * 
+     * Paths not already in the path cache are resolved with a single query. This runs on a
+     * connection from the data source, so can be used by streams which outlive this interface.
+     * 
+     * @param ids Ids of nodes
+     * @return Map from id to path; ids of nodes which do not exist are omitted
+     * @throws SQLException 
+     */
+    Map<Id, RepositoryPath> getPathsTo(Collection<Id> ids) throws SQLException {
+        LOG.entry(ids);
+        Map<Id, RepositoryPath> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (Id id : ids) {
+            RepositoryPath cached = id.equals(Id.ROOT_ID) ? RepositoryPath.ROOT : pathCache.get(id);
+            if (cached != null) 
+                result.put(id, cached);
+            else 
+                missing.add(templates.getSQL(Template.uuidExpr, id.toString()));
+        }
+        if (!missing.isEmpty()) {
+            long generation = pathCache.generation();
+            try (Stream<Map.Entry<Id, RepositoryPath>> paths = FluentStatement
+                .of(templates.getSQL(Template.fetchPathsToIds, String.join(",", missing)))
+                .execute(database.getDataSource(), rs->new AbstractMap.SimpleImmutableEntry<>(new Id(rs.getBytes("ID")), RepositoryPath.valueOf(rs.getString("NAME"))))
+            ) {
+                paths.forEach(path->{
+                    result.put(path.getKey(), path.getValue());
+                    pathCache.put(path.getKey(), path.getValue(), generation);
+                });
+            }
+        }
+        return LOG.exit(result);
+    }
+
+    /** Set the full path on each object returned from a free search.
+     * 
+     * Results are read in batches of PATH_BATCH_SIZE, and the paths for each batch are resolved
+     * with one query, so only one batch is ever held in memory.
+     * 
+     * @param results Objects with paths relative to their parent
+     * @return Stream of objects with full paths
+     */
+    private <T extends VersionedRepositoryObject> Stream<T> getFullPaths(Stream<T> results) {
+        Iterator<T> source = results.iterator();
+        Iterator<T> withPaths = new Iterator<T>() {
+            Iterator<T> batch = Collections.emptyIterator();
+            
+            @Override
+            public boolean hasNext() {
+                if (!batch.hasNext() && source.hasNext()) {
+                    List<T> items = new ArrayList<>();
+                    while (items.size() < PATH_BATCH_SIZE && source.hasNext()) items.add(source.next());
+                    try {
+                        Map<Id, RepositoryPath> paths = getPathsTo(items.stream().map(item->Id.of(item.getId())).collect(Collectors.toSet()));
+                        batch = items.stream().map(item->(T)item.setName(
+                            Optional.ofNullable(paths.get(Id.of(item.getId())))
+                                .orElseThrow(()->LOG.throwing(new RuntimeException("bad link id")))
+                        )).iterator();
+                    } catch (SQLException e) {
+                        throw LOG.throwing(new RuntimeException(e));
+                    }
+                }
+                return batch.hasNext();
+            }
+            
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return batch.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(withPaths, Spliterator.ORDERED), false).onClose(results::close);
+    }
+
     public <T extends VersionedRepositoryObject> T getFullPath(T link) {
         try {
             RepositoryPath path = getPathTo(Id.of(link.getId()))
@@ -1055,17 +1743,21 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
     public <T> Stream<T> getDocumentLinks(RepositoryPath path, Query filter, boolean includeDeleted, boolean includeAllVersions, Mapper<T> mapper) throws SQLException {
         LOG.entry(path, filter, mapper);
 
-        if (path.isEmpty()) {
+        Optional<RepositoryPath> descendantPrefix = getDescendantSearchPrefix(path);
+        if (descendantPrefix.isPresent()) {
+            Optional<Id> ancestor = getFolder(descendantPrefix.get(), GET_VERIFIED_ID);
+            if (!ancestor.isPresent()) return LOG.exit(Stream.empty());
+            checkClosure(ancestor.get(), path);
+            Stream<T> result = FluentStatement
+                .of(searchDescendantLinkSQL(ancestor.get(), path, filter, includeDeleted, includeAllVersions))
+                .execute(database.getDataSource(), mapper);
+            return LOG.exit(result);
+        } else if (path.isEmpty()) {
             Stream<T> result = FluentStatement
                 .of(searchDocumentLinkSQL(RepositoryPath.ROOT, path, filter, includeDeleted, includeAllVersions))
                 .execute(database.getDataSource(), mapper);
             if (mapper == GET_LINK) {
-                // Can't do this in simple map because of connection issues with deferred execution.
-                // However, not a big deal as the primary use case for this is fetching the links related to a
-                // particular document id; normally a small list.
-                List<T> buffer = result.map(link->(T)getFullPath((DocumentLink)link)).collect(Collectors.toList());
-                result.close();
-                result = buffer.stream();
+                result = (Stream<T>)getFullPaths((Stream<DocumentLink>)result);
             }
             return LOG.exit(result);
         } else {
@@ -1084,6 +1776,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         if (parent.getState() != Workspace.State.Open) throw LOG.throwing(new Exceptions.InvalidWorkspaceState(path.parent, parent.getState()));
         List<NamedRepositoryObject> result = new ArrayList<>();
         getInfos(path, GET_INFO, info -> { 
+            invalidatePaths(info.id);
             operations.getStatement(Operation.deleteObject).set(Types.ID, 1, info.id).execute(con);
             switch(info.type) {
                 case DOCUMENT_LINK:
@@ -1105,6 +1798,7 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         if (parent.getState() != Workspace.State.Open) throw LOG.throwing(new Exceptions.InvalidWorkspaceState(path.parent, parent.getState()));
         List<NamedRepositoryObject> result = new ArrayList<>();
         getInfos(path, GET_INFO, info -> { 
+            invalidatePaths(info.id);
             operations.getStatement(Operation.undeleteObject).set(Types.ID, 1, info.id).execute(con); 
             switch(info.type) {
                 case DOCUMENT_LINK:
@@ -1120,6 +1814,83 @@ public class DatabaseInterface extends AbstractInterface<DocumentDatabase.Entity
         return LOG.exit(result.stream());
     }
 
+    /** Store document content in the database rather than the filestore.
+     * 
+     * @param version Id of version, which must already have been created
+     * @param content Content of version
+     * @throws SQLException 
+     */
+    public void updateContent(Id version, byte[] content) throws SQLException {
+        LOG.entry(version, content.length);
+        operations.getStatement(Operation.updateContent)
+            .set(1, content)
+            .set(Types.ID, 2, version)
+            .execute(con);
+        LOG.exit();
+    }
+    
+    /** Get document content stored in the database.
+     * 
+     * @param version Id of version
+     * @return The content, or Optional.empty() if the content of this version is not stored in the database
+     * @throws SQLException 
+     */
+    public Optional<byte[]> getContent(Id version) throws SQLException {
+        LOG.entry(version);
+        try (Stream<byte[]> results = operations.getStatement(Operation.fetchContent)
+            .set(Types.ID, 1, version)
+            .execute(con, rs->rs.getBytes(1))) {
+            return LOG.exit(results.findFirst());
+        }
+    }
+    
+    /** Get the ids of all versions.
+     * 
+     * @return Sorted set of version ids
+     * @throws SQLException 
+     */
+    public SortedIdSet getVersionIds() throws SQLException {
+        LOG.entry();
+        SortedIdSet result = new SortedIdSet();
+        try (Stream<Id> ids = operations.getStatement(Operation.fetchVersionIds)
+            .execute(con, rs->new Id(rs.getBytes(1)))) {
+            ids.forEach(result::add);
+        }
+        result.sort();
+        return LOG.exit(result);
+    }
+    
+    /** Get the ids of versions whose content was found to match their digest when last checked.
+     * 
+     * @return Sorted set of version ids
+     * @throws SQLException 
+     */
+    public SortedIdSet getVerifiedVersionIds() throws SQLException {
+        LOG.entry();
+        SortedIdSet result = new SortedIdSet();
+        try (Stream<Id> ids = operations.getStatement(Operation.fetchVerifiedVersionIds)
+            .execute(con, rs->new Id(rs.getBytes(1)))) {
+            ids.forEach(result::add);
+        }
+        result.sort();
+        return LOG.exit(result);
+    }
+    
+    /** Record the result of checking a version's content against its digest.
+     * 
+     * @param version Id of version
+     * @param ok true if the content matched the digest
+     * @throws SQLException 
+     */
+    public void updateVerified(Id version, boolean ok) throws SQLException {
+        LOG.entry(version, ok);
+        operations.getStatement(Operation.updateVerified)
+            .set(1, ok)
+            .set(Types.ID, 2, version)
+            .execute(con);
+        LOG.exit();
+    }
+    
     void updateDigest(Reference reference, byte[] digest) throws SQLException {
         LOG.entry(reference, digest);
         operations.getStatement(Operation.updateDigest)
@@ -25,6 +25,8 @@ import java.util.Properties;
  */
 public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Operation, Template, DatabaseInterface> {
 
+    public static final int DEFAULT_PATH_CACHE_SIZE = 10000;
+
     private static DataSource getDatasource(URI jdbcURI, Properties properties) throws SQLException {
         HikariConfig config = new HikariConfig();      
         config.setDataSourceProperties(properties);
@@ -42,6 +44,7 @@ public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Ope
     
     public DocumentDatabase(DataSource datasource, DatabaseConfigFactory<EntityType, DataType, Operation, Template> config, CreateOption createOption) throws SQLException {
         super(datasource, config, createOption);
+        if (createOption == CreateOption.UPDATE) completeClosure();
     }
     
     public DocumentDatabase(URI jdbcURI, Properties properties, DatabaseConfig<EntityType, DataType, Operation, Template> config) throws SQLException {
@@ -50,11 +53,104 @@ public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Ope
 
     public DocumentDatabase(URI jdbcURI, Properties properties, DatabaseConfigFactory<EntityType, DataType, Operation, Template> config, CreateOption createOption) throws SQLException {
         super(getDatasource(jdbcURI, properties), config, createOption);
+        if (createOption == CreateOption.UPDATE) completeClosure();
     }    
     
     
     public DocumentDatabase() {        
     }
+    
+    private PathResolution pathResolution = PathResolution.BOTTOM_UP;
+    
+    /** Set the strategy used to resolve the path to a node from its id.
+     * 
+     * @param pathResolution TOP_DOWN or BOTTOM_UP (the default)
+     */
+    public void setPathResolution(PathResolution pathResolution) {
+        this.pathResolution = pathResolution;
+    }
+    
+    public PathResolution getPathResolution() {
+        return pathResolution;
+    }
+    
+    /** Populate the closure table of a repository upgraded from a version without it. */
+    private void completeClosure() throws SQLException {
+        try (DatabaseInterface ifc = getInterface()) {
+            if (!ifc.isClosureComplete()) {
+                ifc.rebuildClosure();
+                ifc.commit();
+            }
+        }
+    }
+    
+    private PathCache pathCache = new PathCache(DEFAULT_PATH_CACHE_SIZE);
+    
+    /** Set the maximum number of id to path mappings cached.
+     * 
+     * The cache is shared by all interfaces created by this database.
+     * 
+     * @param size maximum number of cached paths; zero disables the cache
+     */
+    public void setPathCacheSize(int size) {
+        this.pathCache = new PathCache(size);
+    }
+    
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+    
+    private boolean materializedPaths = false;
+    
+    /** Use the materialized path column for path lookups.
+     * 
+     * The FULL_PATH column of NODES is always maintained, but it can only be used once
+     * paths have been filled in for any nodes created by a previous version of the schema
+     * (see SQLRepositoryServiceMBean.backfillPaths).
+     * 
+     * @param materializedPaths true to look up simple paths using the FULL_PATH column
+     */
+    public void setMaterializedPaths(boolean materializedPaths) {
+        this.materializedPaths = materializedPaths;
+    }
+    
+    public boolean getMaterializedPaths() {
+        return materializedPaths;
+    }
+
+    private int inlineContentSize = 0;
+    
+    /** Set the size of the largest document content which is stored in the database.
+     * 
+     * Content no larger than this is stored in the VERSIONS table, so that it can be read
+     * without accessing the filestore. Larger content is stored in the filestore as usual.
+     * 
+     * @param inlineContentSize size in bytes; zero (the default) stores all content in the filestore
+     */
+    public void setInlineContentSize(int inlineContentSize) {
+        this.inlineContentSize = inlineContentSize;
+    }
+    
+    public int getInlineContentSize() {
+        return inlineContentSize;
+    }
+    
+    private int walkFetchSize = 1000;
+    
+    /** Set the number of rows fetched at a time when walking a subtree.
+     * 
+     * With MySQL, the connection URL must include useCursorFetch=true for the driver to
+     * fetch rows in batches rather than reading the whole result into memory.
+     * 
+     * @param walkFetchSize number of rows (default 1000)
+     */
+    public void setWalkFetchSize(int walkFetchSize) {
+        this.walkFetchSize = walkFetchSize;
+    }
+    
+    public int getWalkFetchSize() {
+        return walkFetchSize;
+    }
 
     @Override
     public DatabaseInterface createInterface() throws SQLException {
@@ -91,6 +187,7 @@ public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Ope
         undeleteObject,
         deleteDocumentById,
         fetchPathToId,
+        fetchPathToIdBottomUp,
         fetchLastNameLike,
         fetchChildByName,
         updateLink,
@@ -104,7 +201,51 @@ public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Ope
         publishNode,
         publishLink,
         updateDigest, 
-        purgeChild
+        purgeChild,
+        updateNodePath,
+        fetchMaterializedPath,
+        initRootPath,
+        backfillPaths,
+        createClosure,
+        purgeChildClosure,
+        clearClosure,
+        createClosureSelfRows,
+        extendClosure,
+        moveNode,
+        fetchClosureDepth,
+        countNodesWithoutClosure,
+        fetchDeletedChildren,
+        fetchChildCount,
+        purgeNodeClosure,
+        purgeFolder,
+        purgeLink,
+        purgeNode,
+        detachClosure,
+        attachClosure,
+        moveDescendantPaths,
+        createCopyRoot,
+        mapCopyChildren,
+        copyMappedNodes,
+        updateMappedPaths,
+        createMappedClosure,
+        copyMappedFolders,
+        copyMappedLinks,
+        publishMappedLinks,
+        clearCopy,
+        updateContent,
+        fetchContent,
+        fetchVersionIds,
+        fetchVerifiedVersionIds,
+        updateVerified
+    }
+    
+    /** Strategy used to resolve the path to a node from its id.
+     */
+    public static enum PathResolution {
+        /** Expand the tree from the root, then select the node (cost grows with repository size) */
+        TOP_DOWN,
+        /** Follow parent links upward from the node (cost grows with depth of node) */
+        BOTTOM_UP
     }
     
     public static enum Template {
@@ -114,7 +255,15 @@ public class DocumentDatabase extends AbstractDatabase<EntityType, DataType, Ope
         fetchDocument,
         nameExpr,
         documentNameExpr,
-        uuidExpr
+        uuidExpr,
+        ancestorPathExpr,
+        descendantsOf,
+        noDeletedAncestors,
+        fetchDeepestFolder,
+        fetchPathsToIds,
+        walkSubtree,
+        fetchLatestDocuments,
+        fetchDocumentsByRecency
     }  
     
     public static class MySQLValueFormatter implements BiFunction<DataType, JsonValue, String> {
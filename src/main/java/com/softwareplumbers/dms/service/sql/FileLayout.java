@@ -0,0 +1,96 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/** Strategy used by LocalFilesystem to place the file for an id under the base path.
+ *
+ * @author jonathan
+ */
+public enum FileLayout {
+
+    /** One directory for each '-' separated part of the id (the original layout).
+     *
+     * The top level may contain a directory for every possible 8 hex digit prefix, and
+     * each lookup traverses five directories.
+     */
+    SEGMENTED(5) {
+        @Override
+        public Path toPath(Path basePath, Id id) {
+            Path path = basePath;
+            for (String elem : id.toString().split("-")) {
+                path = path.resolve(elem);
+            }
+            return path;
+        }
+
+        @Override
+        public Optional<Id> toId(Path basePath, Path file) {
+            Path relative = basePath.relativize(file);
+            if (relative.getNameCount() != getDepth()) return Optional.empty();
+            StringBuilder id = new StringBuilder(relative.getName(0).toString());
+            for (int i = 1; i < relative.getNameCount(); i++) id.append('-').append(relative.getName(i));
+            return parseId(id.toString()).filter(parsed->toPath(basePath, parsed).equals(file));
+        }
+    },
+
+    /** Two levels of 256 directories, chosen from the first two bytes of the id.
+     */
+    HASHED(3) {
+        @Override
+        public Path toPath(Path basePath, Id id) {
+            String name = id.toString();
+            return basePath.resolve(name.substring(0,2)).resolve(name.substring(2,4)).resolve(name);
+        }
+
+        @Override
+        public Optional<Id> toId(Path basePath, Path file) {
+            Path relative = basePath.relativize(file);
+            if (relative.getNameCount() != getDepth()) return Optional.empty();
+            return parseId(relative.getFileName().toString()).filter(parsed->toPath(basePath, parsed).equals(file));
+        }
+    };
+
+    private final int depth;
+
+    private FileLayout(int depth) {
+        this.depth = depth;
+    }
+
+    private static Optional<Id> parseId(String id) {
+        try {
+            return Optional.of(new Id(id));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    /** Get the number of path elements between the base path and a file.
+     *
+     * @return depth of files below the base path
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Get the path of the file for an id.
+     *
+     * @param basePath Base path of filestore
+     * @param id Id of file
+     * @return Path to file
+     */
+    public abstract Path toPath(Path basePath, Id id);
+
+    /** Get the id of a file placed according to this layout.
+     *
+     * @param basePath Base path of filestore
+     * @param file Path to file
+     * @return The id of the file, or Optional.empty() if the path is not one this layout would produce
+     */
+    public abstract Optional<Id> toId(Path basePath, Path file);
+}
@@ -8,8 +8,14 @@ package com.softwareplumbers.dms.service.sql;
 import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
 import com.softwareplumbers.dms.Document;
 import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /** Abstraction of simple file storage system.
  * 
@@ -23,6 +29,9 @@ import java.io.InputStream;
  */
 public interface Filestore<K> {
     
+    /** Size of buffer used by the default implementation of transferTo */
+    public static final int TRANSFER_BUFFER_SIZE = 65536;
+    
     /** 'Not Found' error thrown when a key is not valid 
      */
     public static class NotFound extends IOException {
@@ -34,6 +43,56 @@ public interface Filestore<K> {
         public NotFound(Object key) { super("File not found: " + key); }
     }
     
+    /** Input stream which returns at most a given number of bytes from an underlying stream.
+     */
+    public static class BoundedInputStream extends FilterInputStream {
+        
+        private long remaining;
+        
+        /** Construct a bounded input stream.
+         * 
+         * @param in Underlying stream
+         * @param length Maximum number of bytes to return
+         */
+        public BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int result = super.read();
+            if (result >= 0) remaining--;
+            return result;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int result = super.read(buffer, offset, (int)Math.min(length, remaining));
+            if (result > 0) remaining -= result;
+            return result;
+        }
+        
+        @Override
+        public long skip(long count) throws IOException {
+            long result = super.skip(Math.min(count, remaining));
+            remaining -= result;
+            return result;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(super.available(), remaining);
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+    
     /** Parse a key from a string.
      * 
      * Note that this should be consistent with the implementation of the 
@@ -64,6 +123,151 @@ public interface Filestore<K> {
      */
     InputStream get(K key) throws NotFound;
     
+    /** Get part of the binary data associated with the key.
+     * 
+     * It is the caller's responsibility to close the input stream. Implementations backed
+     * by files should override this so that the data before offset is not read.
+     * 
+     * @param key
+     * @param offset Offset of first byte to read
+     * @param length Maximum number of bytes to read; fewer are returned if the data ends first
+     * @return A stream of binary data from the requested range.
+     * @throws NotFound if key value not previously put or linked. 
+     * @throws IllegalArgumentException if offset or length is negative
+     */
+    default InputStream get(K key, long offset, long length) throws NotFound {
+        checkRange(offset, length);
+        InputStream is = get(key);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long count = is.skip(offset - skipped);
+                if (count <= 0) {
+                    if (is.read() < 0) break;
+                    count = 1;
+                }
+                skipped += count;
+            }
+        } catch (IOException e) {
+            try { is.close(); } catch (IOException ce) { e.addSuppressed(ce); }
+            NotFound error = new NotFound(key);
+            error.initCause(e);
+            throw error;
+        }
+        return new BoundedInputStream(is, length);
+    }
+    
+    /** Check the range passed to a ranged get.
+     * 
+     * @param offset Offset of first byte to read
+     * @param length Maximum number of bytes to read
+     * @throws IllegalArgumentException if offset or length is negative
+     */
+    static void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+    }
+    
+    /** Get the length of the binary data associated with the key.
+     * 
+     * The default implementation reads the data to find its length. Implementations backed
+     * by files should override this so that the data is not read.
+     * 
+     * @param key
+     * @return length in bytes
+     * @throws NotFound if key value not previously put or linked. 
+     */
+    default long size(K key) throws NotFound {
+        try (InputStream is = get(key)) {
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            long length = 0;
+            int count;
+            while ((count = is.read(buffer)) >= 0) length += count;
+            return length;
+        } catch (NotFound e) {
+            throw e;
+        } catch (IOException e) {
+            NotFound error = new NotFound(key);
+            error.initCause(e);
+            throw error;
+        }
+    }
+    
+    /** Content copied into the filestore which has not yet been associated with a key.
+     * 
+     * Closing staged content which has not been committed discards it.
+     * 
+     * @param <K> key type
+     */
+    public interface Staged<K> extends Closeable {
+        
+        /** Get the length of the staged content.
+         * 
+         * @return length in bytes
+         */
+        long getLength();
+        
+        /** Get the digest of the staged content.
+         * 
+         * @return SHA-256 digest
+         */
+        byte[] getDigest();
+        
+        /** Read the staged content.
+         * 
+         * @return A stream of the staged content, which the caller must close
+         * @throws IOException if the content cannot be read
+         */
+        InputStream open() throws IOException;
+        
+        /** Associate the staged content with a key.
+         * 
+         * @param key Key for the content
+         * @param document Document being stored
+         * @throws IOException if the content cannot be stored
+         */
+        void commit(K key, Document document) throws IOException;
+    }
+    
+    /** Copy binary data into the filestore, calculating its length and digest.
+     * 
+     * The default implementation calculates the length and digest using StreamInfo, and
+     * stores the data with put when the staged content is committed. Implementations which
+     * can should override this so that the data is read only once.
+     * 
+     * @param iss Supplier of binary data
+     * @return Staged content, which the caller must close.
+     * @throws IOException if the data cannot be read
+     */
+    default Staged<K> stage(InputStreamSupplier iss) throws IOException {
+        StreamInfo info = StreamInfo.of(iss);
+        return new Staged<K>() {
+            @Override
+            public long getLength() { return info.length; }
+            @Override
+            public byte[] getDigest() { return info.digest; }
+            @Override
+            public InputStream open() throws IOException { return info.supplier.get(); }
+            @Override
+            public void commit(K key, Document document) { put(key, document, info); }
+            @Override
+            public void close() { }
+        };
+    }
+    
+    /** Copy binary data into the filestore, given the key under which it will most likely be committed.
+     * 
+     * The default implementation ignores the key. Implementations which place data according
+     * to its key can use it to stage the data where it will finally be stored.
+     * 
+     * @param key Expected key for the data
+     * @param iss Supplier of binary data
+     * @return Staged content, which the caller must close.
+     * @throws IOException if the data cannot be read
+     */
+    default Staged<K> stage(K key, InputStreamSupplier iss) throws IOException {
+        return stage(iss);
+    }
+    
     /** Associate binary data with some key value.
      * 
      * @param key Key under which to store the document data
@@ -72,6 +276,30 @@ public interface Filestore<K> {
      */
     void put(K key, Document document, StreamInfo iss);
     
+    /** Write the binary data associated with the key to a channel.
+     * 
+     * Implementations backed by files should override this to let the operating system
+     * copy the data directly. The channel is not closed.
+     * 
+     * @param key
+     * @param target Channel to which data is written
+     * @return number of bytes written
+     * @throws NotFound if key value not previously put or linked.
+     * @throws IOException if data cannot be written to the target channel 
+     */
+    default long transferTo(K key, WritableByteChannel target) throws IOException {
+        long count = 0;
+        try (ReadableByteChannel source = Channels.newChannel(get(key))) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            while (source.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                count += target.write(buffer);
+                buffer.compact();
+            }
+        }
+        return count;
+    }
+    
     /** Link previously stored binary data with a new key value.
      * 
      * The old key value remains associated with the binary data after this
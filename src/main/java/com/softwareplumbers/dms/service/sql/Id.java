@@ -59,6 +59,11 @@ public class Id {
         return Arrays.hashCode(data);
     }
     
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+    
     public byte[] getBytes()  {
         return data;
     }
@@ -0,0 +1,426 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.RepositoryPath;
+import com.softwareplumbers.dms.service.sql.SQLRepositoryServiceMBean.IntegrityCheckStatus;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Checks the digest of stored content against the digest recorded for each version.
+ *
+ * A single thread walks a folder and its subfolders, using one query, and hands each version
+ * to a pool of worker threads, which read and hash the content. No more than a few
+ * versions per worker are queued at once, and reads across all workers are throttled to
+ * maxBytesPerSecond.
+ *
+ * If a checkpoint file is given, the id of each version checked is appended to it, and a check
+ * which is stopped and later run again with the same checkpoint file skips those versions. The
+ * checkpoint file is deleted when a check runs to completion.
+ *
+ * The result of hashing each version is recorded in the VERSIONS table. In INCREMENTAL mode,
+ * versions which matched their digest when last checked are skipped, except for a random
+ * sample of sampleFraction of them; in METADATA mode, no content is read and only the length
+ * of the stored file is compared with the length recorded for the version.
+ *
+ * Content is read directly from the stores which hold it, bypassing any CachingFilestore or
+ * TieredFilestore, so that a check neither fills the cache nor promotes content to the fast tier.
+ *
+ * @author jonathan
+ */
+public class IntegrityChecker {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(IntegrityChecker.class);
+    private static final int ID_SIZE = 16;
+    /** Number of versions queued for each worker */
+    private static final int QUEUE_PER_THREAD = 4;
+    /** Number of results recorded in each database transaction */
+    private static final int RECORD_BATCH_SIZE = 100;
+
+    /** Which versions are checked, and how. */
+    public enum Mode {
+        /** Hash the content of every version */
+        FULL,
+        /** Hash the content of versions not yet verified, and a sample of the others */
+        INCREMENTAL,
+        /** Compare the length of the stored content of every version, without reading it */
+        METADATA
+    }
+
+    /** Token bucket limiting the rate at which content is read. */
+    private static class Throttle {
+        private final long bytesPerSecond;
+        private long available = 0;
+        private long last = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        synchronized void acquire(int bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) return;
+            long now = System.nanoTime();
+            long elapsed = Math.min(now - last, TimeUnit.SECONDS.toNanos(1));
+            available = Math.min(bytesPerSecond, available + elapsed * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            last = now;
+            available -= bytes;
+            if (available < 0) TimeUnit.NANOSECONDS.sleep(-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+    }
+
+    private final DocumentDatabase database;
+    private final List<Filestore> filestores = new ArrayList<>();
+    private int threads = 1;
+    private long maxBytesPerSecond = 0;
+    private Path checkpoint = null;
+    private Mode mode = Mode.FULL;
+    private double sampleFraction = 0;
+    private volatile boolean stopped = false;
+
+    public IntegrityChecker(DocumentDatabase database, Filestore filestore) {
+        this.database = database;
+        addFilestores(filestore);
+    }
+
+    private void addFilestores(Filestore filestore) {
+        if (filestore instanceof CachingFilestore) {
+            addFilestores(((CachingFilestore)filestore).getDelegate());
+        } else if (filestore instanceof TieredFilestore) {
+            addFilestores(((TieredFilestore)filestore).getFastTier());
+            addFilestores(((TieredFilestore)filestore).getBulkTier());
+        } else {
+            filestores.add(filestore);
+        }
+    }
+
+    /** Set the number of versions to hash in parallel.
+     *
+     * @param threads number of worker threads (default 1)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /** Set the maximum rate at which content is read, across all workers.
+     *
+     * @param maxBytesPerSecond rate in bytes per second; zero (the default) for no limit
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /** Set the file in which progress is recorded.
+     *
+     * @param checkpoint checkpoint file, or null (the default) for no checkpoint
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /** Set which versions are checked, and how.
+     *
+     * @param mode check mode (default FULL)
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /** Set the fraction of previously verified versions which are hashed again in INCREMENTAL mode.
+     *
+     * @param sampleFraction fraction between 0 (the default) and 1
+     */
+    public void setSampleFraction(double sampleFraction) {
+        this.sampleFraction = sampleFraction;
+    }
+
+    /** Stop a running check.
+     *
+     * Versions already being hashed are completed and the checkpoint file is kept.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private SortedIdSet readCheckpoint() throws IOException {
+        SortedIdSet result = new SortedIdSet();
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            // ignore any partial record written as the check was interrupted
+            while (data.remaining() >= ID_SIZE) {
+                byte[] id = new byte[ID_SIZE];
+                data.get(id);
+                result.add(new Id(id));
+            }
+        }
+        result.sort();
+        return result;
+    }
+
+    private long size(Id version) throws IOException, SQLException {
+        Filestore.NotFound notFound = null;
+        for (Filestore filestore : filestores) {
+            try {
+                return filestore.size(filestore.parseKey(version.toString()));
+            } catch (Filestore.NotFound e) {
+                notFound = e;
+            }
+        }
+        try (DatabaseInterface ifc = database.getInterface()) {
+            Optional<byte[]> content = ifc.getContent(version);
+            if (content.isPresent()) return content.get().length;
+        }
+        throw notFound;
+    }
+
+    private InputStream open(Id version) throws IOException, SQLException {
+        Filestore.NotFound notFound = null;
+        for (Filestore filestore : filestores) {
+            try {
+                return filestore.get(filestore.parseKey(version.toString()));
+            } catch (Filestore.NotFound e) {
+                notFound = e;
+            }
+        }
+        try (DatabaseInterface ifc = database.getInterface()) {
+            Optional<byte[]> content = ifc.getContent(version);
+            if (content.isPresent()) return new ByteArrayInputStream(content.get());
+        }
+        throw notFound;
+    }
+
+    /** State of a single check. */
+    private class Run {
+        final boolean fix;
+        final IntegrityCheckStatus status;
+        final SortedIdSet done;
+        final SortedIdSet verified;
+        final List<Id> passed = new ArrayList<>();
+        final List<Id> failed = new ArrayList<>();
+        final Throttle throttle = new Throttle(maxBytesPerSecond);
+        final Semaphore queue = new Semaphore(threads * QUEUE_PER_THREAD);
+        final ExecutorService workers = Executors.newFixedThreadPool(threads, runnable->{
+            Thread thread = new Thread(runnable, "Integrity check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        FileChannel progress = null;
+
+        Run(boolean fix, IntegrityCheckStatus status, SortedIdSet done, SortedIdSet verified) {
+            this.fix = fix;
+            this.status = status;
+            this.done = done;
+            this.verified = verified;
+        }
+
+        /** Record the result of hashing a version, writing results to the database in batches. */
+        void record(Id version, boolean ok) throws SQLException {
+            boolean full;
+            synchronized(this) {
+                (ok ? passed : failed).add(version);
+                full = passed.size() + failed.size() >= RECORD_BATCH_SIZE;
+            }
+            if (full) flush();
+        }
+
+        void flush() throws SQLException {
+            List<Id> ok;
+            List<Id> notOk;
+            synchronized(this) {
+                ok = new ArrayList<>(passed);
+                notOk = new ArrayList<>(failed);
+                passed.clear();
+                failed.clear();
+            }
+            if (ok.isEmpty() && notOk.isEmpty()) return;
+            try (DatabaseInterface ifc = database.getInterface()) {
+                for (Id version : ok) ifc.updateVerified(version, true);
+                for (Id version : notOk) ifc.updateVerified(version, false);
+                ifc.commit();
+            }
+        }
+
+        void checkLength(SubtreeNode node, Id version) throws IOException, SQLException {
+            long length = size(version);
+            if (length == node.document.getLength()) {
+                LOG.info("OK: {}", node.path);
+                status.ok();
+            } else {
+                LOG.info("FAILED: {}", node.path);
+                LOG.info("Actual: {}", length);
+                LOG.info("Stored: {}", node.document.getLength());
+                status.failed();
+            }
+        }
+
+        void check(SubtreeNode node) {
+            try {
+                LOG.trace("Got node {}", node.document.getReference());
+                Id version = Id.ofVersion(node.document.getReference().getVersion());
+                if (mode == Mode.METADATA) {
+                    checkLength(node, version);
+                    checkpoint(version);
+                    return;
+                }
+                MessageDigest digest = MessageDigest.getInstance(LocalFilesystem.DIGEST_ALGORITHM);
+                byte[] buffer = new byte[Filestore.TRANSFER_BUFFER_SIZE];
+                try (InputStream is = open(version)) {
+                    int count;
+                    while ((count = is.read(buffer)) >= 0) {
+                        throttle.acquire(count);
+                        digest.update(buffer, 0, count);
+                        status.read(count);
+                    }
+                }
+                byte[] calculated = digest.digest();
+                if (Arrays.equals(calculated, node.document.getDigest())) {
+                    LOG.info("OK: {}", node.path);
+                    status.ok();
+                } else {
+                    LOG.info("FAILED: {}", node.path);
+                    LOG.info("Actual: {}", node.document.getDigest());
+                    LOG.info("Calculated: {}", calculated);
+                    status.failed();
+                    if (fix) {
+                        try (DatabaseInterface ifc = database.getInterface()) {
+                            ifc.updateDigest(node.document.getReference(), calculated);
+                            ifc.commit();
+                        }
+                        status.fixed();
+                    }
+                }
+                record(version, fix || Arrays.equals(calculated, node.document.getDigest()));
+                checkpoint(version);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | SQLException | NoSuchAlgorithmException | RuntimeException e) {
+                status.error();
+                LOG.catching(e);
+                LOG.error("Error checking integrity ", e);
+            }
+        }
+
+        void checkpoint(Id version) throws IOException {
+            if (progress != null) {
+                synchronized(progress) {
+                    progress.write(ByteBuffer.wrap(version.getBytes()));
+                }
+            }
+        }
+
+        /** List versions in a folder and its subfolders, handing each to the workers. */
+        void submit(DatabaseInterface ifc, String path) {
+            LOG.entry(path);
+            try (Stream<SubtreeNode> nodes = ifc.walkSubtree(RepositoryPath.valueOf(path), true, true)) {
+                Iterator<SubtreeNode> documents = nodes.filter(node->node.document != null).iterator();
+                while (documents.hasNext() && !stopped) {
+                    SubtreeNode node = documents.next();
+                    Id version = Id.ofVersion(node.document.getReference().getVersion());
+                    if (done.contains(version) || verified.contains(version) && ThreadLocalRandom.current().nextDouble() >= sampleFraction) {
+                        status.skipped();
+                        continue;
+                    }
+                    try {
+                        queue.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stopped = true;
+                        break;
+                    }
+                    workers.execute(()->{
+                        try {
+                            if (!stopped) check(node);
+                        } finally {
+                            queue.release();
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                status.error();
+                LOG.catching(e);
+                LOG.error("Error checking integrity ", e);
+            }
+            LOG.exit();
+        }
+    }
+
+    /** Check every version in a folder and its subfolders.
+     *
+     * Returns when every version has been checked or the check has been stopped. A checker which
+     * has been stopped may be used to run the check again.
+     *
+     * @param path Path to folder
+     * @param fix If true, store the calculated digest for any version where it does not match
+     * @param status Updated with counts as each version is checked
+     */
+    public void check(String path, boolean fix, IntegrityCheckStatus status) {
+        LOG.entry(path, fix, status);
+        stopped = false;
+        Run run = null;
+        try {
+            try (DatabaseInterface ifc = database.getInterface()) {
+                SortedIdSet verified = mode == Mode.INCREMENTAL ? ifc.getVerifiedVersionIds() : new SortedIdSet(1);
+                run = new Run(fix, status, readCheckpoint(), verified);
+                if (checkpoint != null)
+                    run.progress = FileChannel.open(checkpoint, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                run.submit(ifc, path);
+            }
+            run.workers.shutdown();
+            while (!run.workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.debug("Integrity check: {}", status);
+            }
+            run.flush();
+            if (checkpoint != null && !stopped) {
+                run.progress.close();
+                Files.delete(checkpoint);
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        } catch (SQLException e) {
+            status.error();
+            LOG.catching(e);
+            LOG.error("Error checking integrity ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        } finally {
+            if (run != null) {
+                run.workers.shutdownNow();
+                if (run.progress != null) {
+                    try {
+                        run.progress.close();
+                    } catch (IOException e) {
+                        LOG.catching(e);
+                    }
+                }
+            }
+            status.finish();
+        }
+        LOG.exit();
+    }
+}
@@ -5,15 +5,41 @@
  */
 package com.softwareplumbers.dms.service.sql;
 
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
 import com.softwareplumbers.dms.Document;
 import com.softwareplumbers.dms.common.impl.StreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
@@ -24,15 +50,57 @@ import org.slf4j.ext.XLoggerFactory;
 public class LocalFilesystem implements Filestore<Id> {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(LocalFilesystem.class);
+    private static final String STAGING = "staging";
+    protected static final String TEMP_SUFFIX = ".tmp";
+    private static final String ORPHAN_CHECKPOINT = "orphans.checkpoint";
+    
+    /** Algorithm used to calculate the digest of staged content */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
     
     private Path basePath;
+    private FileLayout layout = FileLayout.SEGMENTED;
+    private FileLayout previousLayout = null;
+    
+    protected Path getBasePath() {
+        return basePath;
+    }
+    
+    protected Path toPath(Id id) {
+        return layout.toPath(basePath, id);
+    }
+    
+    /** Operation on a file which may fail with an IOException. */
+    @FunctionalInterface
+    private interface FileOperation<T> {
+        T apply(Path path) throws IOException;
+    }
     
-    private Path toPath(Id id) {
-        Path path = basePath;
-        for (String elem : id.toString().split("-")) {
-            path = path.resolve(elem);
+    /** Apply an operation to the file for an id, which may not yet have been migrated.
+     * 
+     * Migration links a file into the current layout before removing it from the previous
+     * one, so if the file is found in neither place we check the current layout again.
+     */
+    private <T> T withFile(Id id, FileOperation<T> operation) throws IOException {
+        try {
+            return operation.apply(toPath(id));
+        } catch (NoSuchFileException e) {
+            if (previousLayout == null) throw e;
+        }
+        try {
+            return operation.apply(previousLayout.toPath(basePath, id));
+        } catch (NoSuchFileException e) {
+            return operation.apply(toPath(id));
         }
-        return path;
+    }
+    
+    /** Get the directory in which uploaded content is staged.
+     * 
+     * This is under the base path so that staged files can be moved into place atomically.
+     * 
+     * @return staging directory
+     */
+    protected Path getStagingPath() {
+        return basePath.resolve(STAGING);
     }
     
     public LocalFilesystem(Path basePath) {
@@ -64,6 +132,37 @@ public class LocalFilesystem implements Filestore<Id> {
         this.basePath = Paths.get(basePath);
         LOG.exit();
     }
+    
+    /** Set the layout of files under the base path.
+     * 
+     * @param layout SEGMENTED (the default) or HASHED
+     */
+    public void setLayout(FileLayout layout) {
+        LOG.entry(layout);
+        this.layout = layout;
+        LOG.exit();
+    }
+    
+    public FileLayout getLayout() {
+        return layout;
+    }
+    
+    /** Set the layout from which files are being migrated.
+     * 
+     * Files not found in the current layout are looked for in the previous layout, so that
+     * the store remains usable while migrate is running.
+     * 
+     * @param previousLayout layout previously used, or null if no migration is in progress
+     */
+    public void setPreviousLayout(FileLayout previousLayout) {
+        LOG.entry(previousLayout);
+        this.previousLayout = previousLayout;
+        LOG.exit();
+    }
+    
+    public FileLayout getPreviousLayout() {
+        return previousLayout;
+    }
 
     @Override
     public Id parseKey(String key) {
@@ -79,12 +178,73 @@ public class LocalFilesystem implements Filestore<Id> {
     public InputStream get(Id key) throws NotFound {
         LOG.entry(key);
         try {
-            return LOG.exit(Files.newInputStream(toPath(key)));    
+            return LOG.exit(withFile(key, Files::newInputStream));    
+        } catch (IOException e) {
+            throw LOG.throwing(new NotFound(key));
+        }
+    }
+
+    @Override
+    public InputStream get(Id key, long offset, long length) throws NotFound {
+        LOG.entry(key, offset, length);
+        Filestore.checkRange(offset, length);
+        try {
+            SeekableByteChannel channel = withFile(key, path->Files.newByteChannel(path, StandardOpenOption.READ));
+            try {
+                channel.position(offset);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return LOG.exit(new BoundedInputStream(Channels.newInputStream(channel), length));
+        } catch (IOException e) {
+            throw LOG.throwing(new NotFound(key));
+        }
+    }
+
+    @Override
+    public long size(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            return LOG.exit(withFile(key, Files::size));
         } catch (IOException e) {
             throw LOG.throwing(new NotFound(key));
         }
     }
 
+    @Override
+    public long transferTo(Id key, WritableByteChannel target) throws IOException {
+        LOG.entry(key, target);
+        FileChannel source;
+        try {
+            source = withFile(key, path->FileChannel.open(path, StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            throw LOG.throwing(new NotFound(key));
+        }
+        try (FileChannel channel = source) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long count = channel.transferTo(position, size - position, target);
+                // nothing transferred if the file was truncated or the target will not accept data
+                if (count == 0) break;
+                position += count;
+            }
+            if (position < size) {
+                ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+                channel.position(position);
+                while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    int count = target.write(buffer);
+                    if (count == 0) throw LOG.throwing(new IOException("Target channel accepted no data"));
+                    position += count;
+                    buffer.compact();
+                }
+            }
+            return LOG.exit(position);
+        }
+    }
+
     @Override
     public void put(Id version, Document document, StreamInfo iss) {
         LOG.entry(version, document, "<stream>");
@@ -98,6 +258,91 @@ public class LocalFilesystem implements Filestore<Id> {
         LOG.exit();
     }
 
+    /** Content staged in a temporary file.
+     */
+    private class StagedFile implements Staged<Id> {
+        
+        private final Path file;
+        private final long length;
+        private final byte[] digest;
+        
+        public StagedFile(Path file, long length, byte[] digest) {
+            this.file = file;
+            this.length = length;
+            this.digest = digest;
+        }
+        
+        @Override
+        public long getLength() {
+            return length;
+        }
+        
+        @Override
+        public byte[] getDigest() {
+            return digest;
+        }
+        
+        @Override
+        public InputStream open() throws IOException {
+            return Files.newInputStream(file);
+        }
+        
+        @Override
+        public void commit(Id key, Document document) throws IOException {
+            commitStaged(file, key, length, digest);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    /** Store staged content under the given key.
+     * 
+     * The staged file is moved into place; any file remaining at the staged path is 
+     * deleted when the staged content is closed.
+     * 
+     * @param file Staged file
+     * @param key Key under which content is to be stored
+     * @param length Length of staged content
+     * @param digest Digest of staged content
+     * @throws IOException if the content cannot be stored
+     */
+    protected void commitStaged(Path file, Id key, long length, byte[] digest) throws IOException {
+        Path path = toPath(key);
+        Files.createDirectories(path.getParent());
+        Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Stage content in a temporary file under the base path.
+     * 
+     * Length and digest are calculated as the content is written, so the content is
+     * read only once.
+     * 
+     * @param iss Supplier of content
+     * @return Staged content
+     * @throws IOException if the content cannot be read or written
+     */
+    @Override
+    public Staged<Id> stage(InputStreamSupplier iss) throws IOException {
+        LOG.entry("<stream>");
+        Path staging = getStagingPath();
+        Files.createDirectories(staging);
+        Path temp = Files.createTempFile(staging, null, TEMP_SUFFIX);
+        StagedFile result = null;
+        try (InputStream is = iss.get()) {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            long length = Files.copy(new DigestInputStream(is, digest), temp, StandardCopyOption.REPLACE_EXISTING);
+            result = new StagedFile(temp, length, digest.digest());
+            return LOG.exit(result);
+        } catch (NoSuchAlgorithmException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        } finally {
+            if (result == null) Files.deleteIfExists(temp);
+        }
+    }
+
     @Override
     public void link(Document document, Id from, Id to) throws NotFound {
         LOG.entry(document, from, to);
@@ -108,7 +353,7 @@ public class LocalFilesystem implements Filestore<Id> {
             throw LOG.throwing(new UncheckedIOException(e));
         }
         try {
-            Files.createLink(toPath, toPath(from));
+            withFile(from, path->Files.createLink(toPath, path));
         } catch (IOException e) {
             throw LOG.throwing(new NotFound(from));
         }
@@ -118,12 +363,206 @@ public class LocalFilesystem implements Filestore<Id> {
     @Override
     public void remove(Id key) throws NotFound {
         LOG.entry(key);
-        Path path = toPath(key);
         try {
-            Files.delete(path);        
+            withFile(key, path->{ Files.delete(path); return path; });
         } catch (IOException e) {
             throw LOG.throwing(new NotFound(key));
         } 
         LOG.exit();
     }
+    
+    /** List the keys of all files in the store.
+     * 
+     * Files stored under the previous layout are included.
+     * 
+     * @return A stream of keys, which the caller must close
+     * @throws IOException if the base path cannot be read
+     */
+    public Stream<Id> keys() throws IOException {
+        return files(basePath)
+            .map(this::toId)
+            .filter(Optional::isPresent)
+            .map(Optional::get);
+    }
+    
+    /** Get the id of a file placed according to either the current or the previous layout. */
+    private Optional<Id> toId(Path file) {
+        Optional<Id> id = layout.toId(basePath, file);
+        return id.isPresent() || previousLayout == null ? id : previousLayout.toId(basePath, file);
+    }
+    
+    /** Walk the files under a directory, to the depth at which either layout places files. */
+    private Stream<Path> files(Path directory) throws IOException {
+        int depth = previousLayout == null ? layout.getDepth() : Math.max(layout.getDepth(), previousLayout.getDepth());
+        if (!directory.equals(basePath)) depth -= basePath.relativize(directory).getNameCount();
+        return Files.walk(directory, depth)
+            .filter(Files::isRegularFile);
+    }
+    
+    /** Test whether a file was last changed before the cutoff.
+     * 
+     * Uses the inode change time where available rather than the modification time, since a
+     * hard link to existing content keeps the modification time of the original file.
+     */
+    static boolean olderThan(Path file, long cutoff) {
+        try {
+            FileTime changed;
+            try {
+                changed = (FileTime)Files.getAttribute(file, "unix:ctime");
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                changed = attributes.lastModifiedTime().compareTo(attributes.creationTime()) > 0 
+                    ? attributes.lastModifiedTime() 
+                    : attributes.creationTime();
+            }
+            return changed.toMillis() < cutoff;
+        } catch (IOException e) {
+            // removed since the directory was read
+            return false;
+        }
+    }
+    
+    private int collectOrphans(String shard, Predicate<Id> referenced, long cutoff) {
+        LOG.entry(shard, cutoff);
+        int deleted = 0;
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(basePath, shard + "*")) {
+            for (Path directory : directories) {
+                try (Stream<Path> files = files(directory)) {
+                    deleted += files.mapToInt(file->{
+                        Optional<Id> id = toId(file);
+                        if (!id.isPresent() || referenced.test(id.get()) || !olderThan(file, cutoff)) return 0;
+                        try {
+                            Files.delete(file);
+                            LOG.debug("Deleted orphan {}", file);
+                            return 1;
+                        } catch (NoSuchFileException e) {
+                            return 0;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }).sum();
+                }
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        return LOG.exit(deleted);
+    }
+    
+    /** Delete files which belong to no known key.
+     * 
+     * Both layouts place files in top level directories named for hex digits from the id, so
+     * the directories are divided into shards by their first two characters and the shards are
+     * swept in parallel. Each shard is recorded in a checkpoint file under the base path once it
+     * has been swept, so if interrupted the collection may simply be run again and will resume
+     * with the remaining shards; the checkpoint is deleted when the collection completes. Staged
+     * files abandoned before the cutoff are also deleted.
+     * 
+     * The cutoff should allow for the time between content being stored and the version which
+     * refers to it being committed, since such content may not be referenced yet.
+     * 
+     * @param referenced Test for whether a key is still referenced
+     * @param cutoff Time in milliseconds since the epoch; only files last changed before this are deleted
+     * @param threads Number of shards to sweep in parallel
+     * @return The number of files deleted
+     */
+    public int collectOrphans(Predicate<Id> referenced, long cutoff, int threads) {
+        LOG.entry(cutoff, threads);
+        Path checkpoint = basePath.resolve(ORPHAN_CHECKPOINT);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Set<String> swept = new HashSet<>();
+            if (Files.exists(checkpoint)) swept.addAll(Files.readAllLines(checkpoint));
+            List<String> shards = new ArrayList<>();
+            for (int i = 0; i < 256; i++) {
+                String shard = String.format("%02x", i);
+                if (!swept.contains(shard)) shards.add(shard);
+            }
+            int deleted = pool.submit(()->shards
+                .parallelStream()
+                .mapToInt(shard->{
+                    int count = collectOrphans(shard, referenced, cutoff);
+                    synchronized(checkpoint) {
+                        try {
+                            Files.write(checkpoint, Collections.singletonList(shard), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    return count;
+                })
+                .sum()
+            ).get();
+            Path staging = getStagingPath();
+            if (Files.isDirectory(staging)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(staging, "*" + TEMP_SUFFIX)) {
+                    for (Path file : files) {
+                        if (olderThan(file, cutoff) && Files.deleteIfExists(file)) deleted++;
+                    }
+                }
+            }
+            Files.deleteIfExists(checkpoint);
+            return LOG.exit(deleted);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        } catch (InterruptedException | ExecutionException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private int migrate(Path file) {
+        Optional<Id> id = previousLayout.toId(basePath, file);
+        if (!id.isPresent()) return 0;
+        Path target = toPath(id.get());
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, file);
+            } catch (FileAlreadyExistsException e) {
+                // already linked by an interrupted migration
+                if (!Files.isSameFile(target, file)) {
+                    LOG.warn("Not migrating {}: {} already exists", file, target);
+                    return 0;
+                }
+            }
+            Files.delete(file);
+            return 1;
+        } catch (NoSuchFileException e) {
+            // removed since the directory was read
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /** Move files stored in the previous layout into the current layout.
+     * 
+     * Each file is linked into the current layout before it is removed from the previous one,
+     * so the store may be used while the migration runs. If interrupted, the migration may
+     * simply be run again. Empty directories of the previous layout are left in place.
+     * 
+     * @param threads Number of files to migrate in parallel
+     * @return The number of files migrated
+     */
+    public int migrate(int threads) {
+        LOG.entry(threads);
+        if (previousLayout == null || previousLayout == layout) return LOG.exit(0);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (Stream<Path> files = Files.walk(basePath, previousLayout.getDepth())) {
+            return LOG.exit(pool.submit(()->files
+                .parallel()
+                .filter(Files::isRegularFile)
+                .mapToInt(this::migrate)
+                .sum()
+            ).get());
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        } catch (InterruptedException | ExecutionException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
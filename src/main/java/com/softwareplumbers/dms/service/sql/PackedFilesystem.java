@@ -0,0 +1,603 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Local filesystem which packs small files into large segment files.
+ *
+ * Files no larger than maxPackedSize are appended to the current segment file in a
+ * 'segments' directory under the base path, each preceded by a header containing its key
+ * and length. Larger files are stored exactly as by LocalFilesystem. The offset of each
+ * packed file is held in memory, and is rebuilt by scanning the segment files when the
+ * store is first used.
+ *
+ * Removing a packed file records its offset in a '.dead' file alongside the segment. Segments
+ * in which the proportion of live data falls below compactionThreshold are compacted by
+ * copying their remaining files to the current segment and deleting them. Compaction runs
+ * every compactionInterval seconds (by default every five minutes) in a background thread,
+ * and on demand via compact.
+ *
+ * @author jonathan
+ */
+public class PackedFilesystem extends LocalFilesystem implements Closeable {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(PackedFilesystem.class);
+    private static final String SEGMENTS = "segments";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String DEAD_SUFFIX = ".dead";
+    /** Record header: 16 byte key followed by 4 byte length */
+    private static final int HEADER_SIZE = 20;
+
+    public static final int DEFAULT_MAX_PACKED_SIZE = 16384;
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_INTERVAL = 300;
+
+    private static class Segment {
+        final int number;
+        final Path data;
+        final Path dead;
+        final FileChannel channel;
+        long size = 0;
+        long live = 0;
+
+        Segment(Path directory, int number) throws IOException {
+            this.number = number;
+            String name = String.format("%s%08d", SEGMENT_PREFIX, number);
+            this.data = directory.resolve(name + DATA_SUFFIX);
+            this.dead = directory.resolve(name + DEAD_SUFFIX);
+            this.channel = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private int maxPackedSize = DEFAULT_MAX_PACKED_SIZE;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+
+    private final Map<Id, Location> index = new ConcurrentHashMap<>();
+    /** Original locations of records copied by the compaction in progress; guarded by the write lock */
+    private final Map<Id, Location> compacted = new HashMap<>();
+    private final NavigableMap<Integer, Segment> segments = new TreeMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Segment active;
+    private ScheduledExecutorService compactor;
+    private volatile boolean opened = false;
+
+    public PackedFilesystem(Path basePath) {
+        super(basePath);
+    }
+
+    public PackedFilesystem() {
+        this(Paths.get("/var/tmp/doctane/filestore"));
+    }
+
+    /** Set the size of the largest file which will be packed into a segment.
+     *
+     * @param maxPackedSize size in bytes (default 16384)
+     */
+    public void setMaxPackedSize(int maxPackedSize) {
+        this.maxPackedSize = maxPackedSize;
+    }
+
+    /** Set the size at which a new segment file is started.
+     *
+     * @param segmentSize size in bytes (default 64MB)
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /** Set the proportion of live data below which a segment is compacted.
+     *
+     * @param compactionThreshold value between 0 and 1 (default 0.5)
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /** Set the interval between background compactions.
+     *
+     * @param compactionInterval interval in seconds (default 300); zero disables background compaction
+     */
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    private static int recordSize(int length) {
+        return HEADER_SIZE + length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) throw new EOFException();
+            position += count;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private Path getSegmentsPath() {
+        return getBasePath().resolve(SEGMENTS);
+    }
+
+    private Set<Long> readDeadOffsets(Segment segment) throws IOException {
+        Set<Long> offsets = new HashSet<>();
+        if (Files.exists(segment.dead)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.dead));
+            while (buffer.remaining() >= Long.BYTES) offsets.add(buffer.getLong());
+        }
+        return offsets;
+    }
+
+    /** Add the live records in a segment to the index.
+     *
+     * A partial record at the end of the segment (left by a crash during a write) is truncated.
+     * Where the same key appears in more than one segment (left by a crash during compaction)
+     * the record in the later segment is used.
+     */
+    private void load(Segment segment) throws IOException {
+        Set<Long> dead = readDeadOffsets(segment);
+        long size = segment.channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            byte[] key = new byte[16];
+            header.get(key);
+            int length = header.getInt();
+            if (length < 0 || offset + recordSize(length) > size) break;
+            if (!dead.contains(offset)) {
+                Location previous = index.put(new Id(key), new Location(segment, offset, length));
+                if (previous != null) previous.segment.live -= recordSize(previous.length);
+                segment.live += recordSize(length);
+            }
+            offset += recordSize(length);
+        }
+        if (offset < size) {
+            LOG.warn("Truncating incomplete record at {} in {}", offset, segment.data);
+            segment.channel.truncate(offset);
+        }
+        segment.size = offset;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) return;
+        synchronized(this) {
+            if (opened) return;
+            Path directory = getSegmentsPath();
+            Files.createDirectories(directory);
+            List<Integer> numbers = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + DATA_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - DATA_SUFFIX.length())));
+                }
+            }
+            numbers.sort(null);
+            for (int number : numbers) {
+                Segment segment = new Segment(directory, number);
+                load(segment);
+                segments.put(number, segment);
+            }
+            // dead files whose segment was deleted by an interrupted compaction
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + DEAD_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (Files.notExists(directory.resolve(name.substring(0, name.length() - DEAD_SUFFIX.length()) + DATA_SUFFIX)))
+                        Files.delete(file);
+                }
+            }
+            active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (compactionInterval > 0) {
+                compactor = Executors.newSingleThreadScheduledExecutor(runnable->{
+                    Thread thread = new Thread(runnable, "PackedFilesystem compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                compactor.scheduleWithFixedDelay(()->{
+                    try {
+                        compact();
+                    } catch (RuntimeException e) {
+                        LOG.error("Error compacting segments ", e);
+                    }
+                }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+            }
+            opened = true;
+        }
+    }
+
+    /** Append a record to the active segment and index it. Caller must hold the write lock. */
+    private Location append(Id key, byte[] data) throws IOException {
+        if (active == null || active.size + recordSize(data.length) > segmentSize) {
+            int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = new Segment(getSegmentsPath(), number);
+            segments.put(number, active);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize(data.length));
+        buffer.put(key.getBytes()).putInt(data.length).put(data).flip();
+        long offset = active.size;
+        writeFully(active.channel, buffer, offset);
+        active.size += recordSize(data.length);
+        active.live += recordSize(data.length);
+        Location location = new Location(active, offset, data.length);
+        index.put(key, location);
+        return location;
+    }
+
+    /** Record the offset of a removed record so that it is not loaded again. Caller must hold the write lock. */
+    private static void markDead(Location location) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(Long.BYTES).putLong(location.offset);
+        Files.write(location.segment.dead, offset.array(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void put(Id key, byte[] data) throws IOException {
+        ensureOpen();
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(key)) throw new FileAlreadyExistsException(key.toString());
+            append(key, data);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Optional<byte[]> read(Id key) throws IOException {
+        ensureOpen();
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) return Optional.empty();
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            readFully(location.segment.channel, buffer, location.offset + HEADER_SIZE);
+            return Optional.of(buffer.array());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static byte[] readAll(InputStream is, long length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)length);
+        byte[] buffer = new byte[(int)Math.max(length, 1)];
+        int count;
+        while ((count = is.read(buffer)) >= 0) out.write(buffer, 0, count);
+        return out.toByteArray();
+    }
+
+    @Override
+    public InputStream get(Id key) throws NotFound {
+        LOG.entry(key);
+        Optional<byte[]> data;
+        try {
+            data = read(key);
+        } catch (IOException e) {
+            LOG.catching(e);
+            throw LOG.throwing(new NotFound(key));
+        }
+        if (data.isPresent()) return LOG.exit(new ByteArrayInputStream(data.get()));
+        return LOG.exit(super.get(key));
+    }
+
+    @Override
+    public InputStream get(Id key, long offset, long length) throws NotFound {
+        LOG.entry(key, offset, length);
+        Filestore.checkRange(offset, length);
+        Optional<byte[]> data;
+        try {
+            data = read(key);
+        } catch (IOException e) {
+            LOG.catching(e);
+            throw LOG.throwing(new NotFound(key));
+        }
+        if (data.isPresent()) {
+            int start = (int)Math.min(offset, data.get().length);
+            int count = (int)Math.min(length, data.get().length - start);
+            return LOG.exit(new ByteArrayInputStream(data.get(), start, count));
+        }
+        return LOG.exit(super.get(key, offset, length));
+    }
+
+    @Override
+    public long size(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            LOG.catching(e);
+            throw LOG.throwing(new NotFound(key));
+        }
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location != null) return LOG.exit((long)location.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return LOG.exit(super.size(key));
+    }
+
+    @Override
+    public long transferTo(Id key, WritableByteChannel target) throws IOException {
+        LOG.entry(key, target);
+        Optional<byte[]> data = read(key);
+        if (!data.isPresent()) return LOG.exit(super.transferTo(key, target));
+        ByteBuffer buffer = ByteBuffer.wrap(data.get());
+        while (buffer.hasRemaining()) target.write(buffer);
+        return LOG.exit((long)data.get().length);
+    }
+
+    @Override
+    public void put(Id version, Document document, StreamInfo iss) {
+        LOG.entry(version, document, "<stream>");
+        if (iss.length > maxPackedSize) {
+            super.put(version, document, iss);
+        } else {
+            try (InputStream is = iss.supplier.get()) {
+                put(version, readAll(is, iss.length));
+            } catch (IOException e) {
+                throw LOG.throwing(new UncheckedIOException(e));
+            }
+        }
+        LOG.exit();
+    }
+
+    @Override
+    protected void commitStaged(Path file, Id key, long length, byte[] digest) throws IOException {
+        if (length > maxPackedSize)
+            super.commitStaged(file, key, length, digest);
+        else
+            put(key, Files.readAllBytes(file));
+    }
+
+    @Override
+    public void link(Document document, Id from, Id to) throws NotFound {
+        LOG.entry(document, from, to);
+        try {
+            Optional<byte[]> data = read(from);
+            if (data.isPresent()) {
+                put(to, data.get());
+                LOG.exit();
+                return;
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        super.link(document, from, to);
+        LOG.exit();
+    }
+
+    @Override
+    public void remove(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            ensureOpen();
+            lock.writeLock().lock();
+            try {
+                Location location = index.remove(key);
+                if (location != null) {
+                    markDead(location);
+                    location.segment.live -= recordSize(location.length);
+                    // the original must also be dead, or a crash before compaction completes would revive it
+                    Location original = compacted.remove(key);
+                    if (original != null) markDead(original);
+                    LOG.exit();
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        super.remove(key);
+        LOG.exit();
+    }
+
+    @Override
+    public Stream<Id> keys() throws IOException {
+        ensureOpen();
+        List<Id> packed;
+        lock.readLock().lock();
+        try {
+            packed = new ArrayList<>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Stream.concat(packed.stream(), super.keys());
+    }
+
+    /** Delete files which belong to no known key, including packed files.
+     * 
+     * Records have no time of their own, so a packed file is only deleted if its segment was
+     * last changed before the cutoff.
+     * 
+     * @param referenced Test for whether a key is still referenced
+     * @param cutoff Time in milliseconds since the epoch; only files last changed before this are deleted
+     * @param threads Number of shards to sweep in parallel
+     * @return The number of files deleted
+     */
+    @Override
+    public int collectOrphans(Predicate<Id> referenced, long cutoff, int threads) {
+        LOG.entry(cutoff, threads);
+        int deleted = super.collectOrphans(referenced, cutoff, threads);
+        List<Id> orphans = new ArrayList<>();
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        lock.readLock().lock();
+        try {
+            Map<Segment, Boolean> old = new HashMap<>();
+            index.forEach((key, location)->{
+                if (!referenced.test(key) && old.computeIfAbsent(location.segment, segment->olderThan(segment.data, cutoff)))
+                    orphans.add(key);
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Id orphan : orphans) {
+            try {
+                remove(orphan);
+                deleted++;
+            } catch (NotFound e) {
+                // removed since the index was read
+            }
+        }
+        return LOG.exit(deleted);
+    }
+
+    /** Copy the live records in a segment to the active segment, then delete it. */
+    private void compact(Segment segment) throws IOException {
+        LOG.entry(segment.data);
+        int firstTarget;
+        lock.writeLock().lock();
+        try {
+            firstTarget = active.number;
+            compacted.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset < segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            byte[] key = new byte[16];
+            header.get(key);
+            int length = header.getInt();
+            Id id = new Id(key);
+            lock.writeLock().lock();
+            try {
+                Location location = index.get(id);
+                if (location != null && location.segment == segment && location.offset == offset) {
+                    ByteBuffer data = ByteBuffer.allocate(length);
+                    readFully(segment.channel, data, offset + HEADER_SIZE);
+                    append(id, data.array());
+                    compacted.put(id, location);
+                    segment.live -= recordSize(length);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            offset += recordSize(length);
+        }
+        lock.writeLock().lock();
+        try {
+            // copied records must be on disk before the originals are deleted, in every segment they went to
+            for (Segment target : segments.tailMap(firstTarget, true).values()) target.channel.force(false);
+            segments.remove(segment.number);
+            segment.channel.close();
+            Files.delete(segment.data);
+            Files.deleteIfExists(segment.dead);
+            compacted.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.exit();
+    }
+
+    /** Compact segments in which the proportion of live data is below the compaction threshold.
+     *
+     * @return The number of segments compacted
+     */
+    public synchronized int compact() {
+        LOG.entry();
+        try {
+            ensureOpen();
+            List<Segment> candidates = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.live < segment.size * compactionThreshold)
+                        candidates.add(segment);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (Segment segment : candidates) compact(segment);
+            return LOG.exit(candidates.size());
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    /** Stop background compaction and close segment files. */
+    @Override
+    public void close() throws IOException {
+        LOG.entry();
+        if (compactor != null) compactor.shutdown();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) segment.channel.close();
+            segments.clear();
+            index.clear();
+            active = null;
+            opened = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.exit();
+    }
+}
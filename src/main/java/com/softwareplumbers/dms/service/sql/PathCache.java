@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.RepositoryPath;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded cache of node id to repository path.
+ *
+ * Shared between all DatabaseInterface instances created by a DocumentDatabase. The
+ * cache is bounded approximately; when full, arbitrary entries are evicted to make room.
+ *
+ * Invalidation removes any entry whose path lies at or below a given path. Each invalidation
+ * also advances a generation counter, so that a value read from the database before an
+ * invalidation is never stored after it.
+ *
+ * @author jonathan
+ */
+public class PathCache {
+
+    private final ConcurrentHashMap<Id, RepositoryPath> cache = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final int maxSize;
+
+    /** Create a path cache.
+     *
+     * @param maxSize maximum number of entries; zero disables the cache
+     */
+    public PathCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /** Get the current generation; pass this to put after reading a path from the database.
+     *
+     * @return current generation
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /** Get the cached path for an id.
+     *
+     * @param id Node id
+     * @return The cached path, or null
+     */
+    public RepositoryPath get(Id id) {
+        RepositoryPath result = cache.get(id);
+        if (result == null) misses.incrementAndGet(); else hits.incrementAndGet();
+        return result;
+    }
+
+    /** Add a path to the cache.
+     *
+     * The path is discarded if any invalidation has occurred since the given generation.
+     *
+     * @param id Node id
+     * @param path Path to node
+     * @param readGeneration generation obtained before the path was read from the database
+     */
+    public void put(Id id, RepositoryPath path, long readGeneration) {
+        if (!isEnabled() || generation.get() != readGeneration) return;
+        if (cache.size() >= maxSize) {
+            Iterator<Id> keys = cache.keySet().iterator();
+            while (cache.size() >= maxSize && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        cache.put(id, path);
+        // if an invalidation raced with us, we can't be sure the path is still valid
+        if (generation.get() != readGeneration) cache.remove(id, path);
+    }
+
+    /** Remove the given path and all paths below it from the cache.
+     *
+     * @param path Path to invalidate
+     */
+    public void invalidate(RepositoryPath path) {
+        generation.incrementAndGet();
+        String prefix = path.toString();
+        if (prefix.isEmpty()) {
+            cache.clear();
+        } else {
+            String children = prefix + "/";
+            cache.values().removeIf(value -> {
+                String valuePath = value.toString();
+                return valuePath.equals(prefix) || valuePath.startsWith(children);
+            });
+        }
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Size: %d, Hits: %d, Misses: %d", size(), getHits(), getMisses());
+    }
+}
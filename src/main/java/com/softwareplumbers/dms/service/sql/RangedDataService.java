@@ -0,0 +1,45 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.Exceptions;
+import com.softwareplumbers.dms.Options;
+import com.softwareplumbers.dms.Reference;
+import com.softwareplumbers.dms.RepositoryPath;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Extension to RepositoryService for reading part of a document.
+ * 
+ * Obtain an instance via RepositoryService.getImplementation(RangedDataService.class).
+ *
+ * @author jonathan
+ */
+public interface RangedDataService {
+    
+    /** Get a range of bytes from the document at the given path.
+     * 
+     * @param path Path to document link
+     * @param offset Offset of first byte to read
+     * @param length Maximum number of bytes to read; fewer are returned if the document ends first
+     * @param options Options as for RepositoryService.getData
+     * @return A stream of the requested bytes, which the caller must close
+     * @throws Exceptions.InvalidObjectName if there is no document at the given path
+     * @throws IOException if the document data cannot be read
+     */
+    InputStream getData(RepositoryPath path, long offset, long length, Options.Get... options) throws Exceptions.InvalidObjectName, IOException;
+    
+    /** Get a range of bytes from the referenced document.
+     * 
+     * @param reference Reference to document
+     * @param offset Offset of first byte to read
+     * @param length Maximum number of bytes to read; fewer are returned if the document ends first
+     * @return A stream of the requested bytes, which the caller must close
+     * @throws Exceptions.InvalidReference if the reference is not valid
+     * @throws IOException if the document data cannot be read
+     */
+    InputStream getData(Reference reference, long offset, long length) throws Exceptions.InvalidReference, IOException;
+}
@@ -29,9 +29,13 @@ import com.softwareplumbers.dms.common.impl.DocumentImpl;
 import com.softwareplumbers.dms.common.impl.LocalData;
 import com.softwareplumbers.dms.common.impl.StreamInfo;
 import com.softwareplumbers.dms.service.sql.Filestore.NotFound;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.time.Instant;
@@ -57,7 +61,7 @@ import org.springframework.beans.factory.annotation.Required;
  *
  * @author Jonathan Essex
  */
-public class SQLRepositoryService implements RepositoryService {
+public class SQLRepositoryService implements RepositoryService, RangedDataService {
 
     private static XLogger LOG = XLoggerFactory.getXLogger(SQLRepositoryService.class);
     
@@ -80,12 +84,124 @@ public class SQLRepositoryService implements RepositoryService {
         }
     }
     
+    /** Get a channel which writes directly to the given output stream, if there is one.
+     * 
+     * @param out Output stream
+     * @return A channel, or Optional.empty() if the stream is not backed by a channel.
+     */
+    private static Optional<WritableByteChannel> getChannel(OutputStream out) {
+        if (out instanceof WritableByteChannel) return Optional.of((WritableByteChannel)out);
+        if (out instanceof FileOutputStream) return Optional.of(((FileOutputStream)out).getChannel());
+        return Optional.empty();
+    }
+    
+    /** Length passed to withContent when it is not known without a further query */
+    private static final long UNKNOWN_LENGTH = Long.MAX_VALUE;
+    
+    @FunctionalInterface
+    private interface StoredContentOperation<T> {
+        T apply(Id version) throws IOException;
+    }
+    
+    @FunctionalInterface
+    private interface InlineContentOperation<T> {
+        T apply(byte[] content) throws IOException;
+    }
+    
+    private Optional<byte[]> getInlineContent(DatabaseInterface db, Id version) throws SQLException {
+        if (db != null) return db.getContent(version);
+        try (DatabaseInterface ifc = dbFactory.getInterface()) {
+            return ifc.getContent(version);
+        }
+    }
+    
+    /** Apply an operation to the content of a version, which may be stored in the database or the filestore.
+     * 
+     * When inline content is enabled and the content is small enough to have been stored inline, the
+     * database is checked first. Otherwise the database is checked only if the filestore does not have
+     * the content, so that content stored in the database remains readable if inline content is later
+     * disabled or reduced.
+     * 
+     * @param db Open database interface, or null to open one only if it is needed
+     * @param version Version id
+     * @param length Length of the content, or UNKNOWN_LENGTH to check the filestore first
+     * @param inline Operation applied to content stored in the database
+     * @param stored Operation applied to content stored in the filestore
+     */
+    private <T> T withContent(DatabaseInterface db, Id version, long length, InlineContentOperation<T> inline, StoredContentOperation<T> stored) throws IOException, SQLException {
+        int inlineContentSize = dbFactory.getInlineContentSize();
+        if (inlineContentSize > 0 && length <= inlineContentSize) {
+            Optional<byte[]> content = getInlineContent(db, version);
+            return content.isPresent() ? inline.apply(content.get()) : stored.apply(version);
+        }
+        try {
+            return stored.apply(version);
+        } catch (NotFound e) {
+            Optional<byte[]> content = getInlineContent(db, version);
+            if (content.isPresent()) return inline.apply(content.get());
+            throw e;
+        }
+    }
+    
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[Filestore.TRANSFER_BUFFER_SIZE];
+        int count;
+        while ((count = is.read(buffer)) >= 0) out.write(buffer, 0, count);
+        return out.toByteArray();
+    }
+    
+    /** Commit staged content to the filestore, unless it is small enough to be stored in the database.
+     * 
+     * @return Content to store in the database once the version is created, or null
+     */
+    private byte[] commitContent(Filestore.Staged<Id> staged, Id version, Document document) throws IOException {
+        int inlineContentSize = dbFactory.getInlineContentSize();
+        if (inlineContentSize > 0 && staged.getLength() <= inlineContentSize) {
+            try (InputStream is = staged.open()) {
+                return readAll(is);
+            }
+        }
+        staged.commit(version, document);
+        return null;
+    }
+    
+    private static void storeContent(DatabaseInterface db, Id version, byte[] content) throws SQLException {
+        if (content != null) db.updateContent(version, content);
+    }
+    
+    private static InputStream getRange(byte[] content, long offset, long length) {
+        int start = (int)Math.min(offset, content.length);
+        int count = (int)Math.min(length, content.length - start);
+        return new ByteArrayInputStream(content, start, count);
+    }
+    
+    private void writeData(Id version, OutputStream out) throws IOException {
+        Optional<WritableByteChannel> channel = getChannel(out);
+        if (channel.isPresent()) {
+            filestore.transferTo(version, channel.get());
+        } else {
+            OutputStreamConsumer.of(()->filestore.get(version)).consume(out);
+        }
+    }
+    
     private static <T extends Document> T mostRecent(T a, T b) {
         return a.getUpdateTime().compareTo(b.getUpdateTime()) > 0 ? a : b;
     }
     
-    private Collector<Document, ?, Map<String, Document>> mostRecentDocument() {        
-        return Collectors.toMap(document->document.getReference().getId(), v->v, SQLRepositoryService::mostRecent);
+    /** Predicate passing the first of each run of versions of the same document in a stream. */
+    private static Predicate<Document> firstOfEachDocument() {
+        return new Predicate<Document>() {
+            String previous = null;
+            
+            @Override
+            public boolean test(Document document) {
+                String id = document.getReference().getId();
+                if (id.equals(previous)) return false;
+                previous = id;
+                return true;
+            }
+        };
     }
     
     private Collector<DocumentLink, ?, Map<RepositoryPath, Document>> mostRecentLink() {        
@@ -121,20 +237,24 @@ public class SQLRepositoryService implements RepositoryService {
         LOG.entry(mediaType, iss, metadata);
         Id version = filestore.generateKey();
         Id id = new Id();
+        boolean complete = false;
         try (
+            Filestore.Staged<Id> staged = filestore.stage(version, iss);
             DatabaseInterface db = dbFactory.getInterface();
         ) {
-            StreamInfo info = StreamInfo.of(iss);
-            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, info.length, info.digest, metadata, false, LocalData.NONE);
-            filestore.put(version, document, info);
-            db.createDocument(id, version, mediaType, info.length, info.digest, metadata);
+            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, staged.getLength(), staged.getDigest(), metadata, false, LocalData.NONE);
+            byte[] content = commitContent(staged, version, document);
+            db.createDocument(id, version, mediaType, staged.getLength(), staged.getDigest(), metadata);
+            storeContent(db, version, content);
             db.commit();
+            complete = true;
             return new Reference(id.toString(), version.toString());
         } catch (SQLException e) {
-            maybeDestroyDocument(version);
             throw LOG.throwing(new RuntimeException(e));
         } catch (IOException e) {
             throw LOG.throwing(new RuntimeException(e));           
+        } finally {
+            if (!complete) maybeDestroyDocument(version);
         }
     }
 
@@ -142,7 +262,9 @@ public class SQLRepositoryService implements RepositoryService {
     public Reference updateDocument(String id, String mediaType, InputStreamSupplier iss, JsonObject metadata) throws Exceptions.InvalidDocumentId {
         LOG.entry(id, mediaType, iss, metadata);
         Id version = filestore.generateKey();
+        boolean complete = false;
         try (
+            Filestore.Staged<Id> staged = iss == null ? null : filestore.stage(version, iss);
             DatabaseInterface db = dbFactory.getInterface(); 
         ) {
             Optional<Document> existing = db.getDocument(new Id(id), null, DatabaseInterface.GET_DOCUMENT);
@@ -153,26 +275,33 @@ public class SQLRepositoryService implements RepositoryService {
                 byte[] digest = existingDoc.getDigest();
                 Id replacing = new Id(existingDoc.getReference().version);
                 metadata = RepositoryObject.mergeMetadata(existingDoc.getMetadata(), metadata);
-                if (iss != null) {
-                    StreamInfo info = StreamInfo.of(iss);
-                    length = info.length;
-                    digest = info.digest;
-                    filestore.put(version, existingDoc.setMetadata(metadata), info);
+                byte[] content;
+                if (staged != null) {
+                    length = staged.getLength();
+                    digest = staged.getDigest();
+                    content = commitContent(staged, version, existingDoc.setMetadata(metadata));
                 } else {
-                    filestore.link(existingDoc.setMetadata(metadata), replacing, version);
+                    Document linked = existingDoc.setMetadata(metadata);
+                    content = withContent(db, replacing, existingDoc.getLength(), existingContent->existingContent, from->{
+                        filestore.link(linked, from, version);
+                        return null;
+                    });
                 }
                 Id docId = new Id(id);
                 db.createVersion(docId, version, mediaType, length, digest, metadata);
+                storeContent(db, version, content);
                 db.commit();
+                complete = true;
             } else {
                 throw LOG.throwing(new Exceptions.InvalidDocumentId(id));
             }
         } catch (SQLException e) {
-            maybeDestroyDocument(version);
             throw LOG.throwing(new RuntimeException(e));
         } catch (IOException e) {
             throw LOG.throwing(new RuntimeException(e));           
-        } 
+        } finally {
+            if (!complete) maybeDestroyDocument(version);
+        }
         return LOG.exit(new Reference(id, version.toString()));
     }
     
@@ -206,7 +335,9 @@ public class SQLRepositoryService implements RepositoryService {
         Reference reference = new Reference(id.toString(), version.toString());
         if (metadata == null) metadata = JsonObject.EMPTY_JSON_OBJECT;
         if (path.find(RepositoryPath::isVersion).isPresent()) throw LOG.throwing(new Exceptions.InvalidWorkspaceState(path, Workspace.State.Published));
+        boolean complete = false;
         try (
+            Filestore.Staged<Id> staged = filestore.stage(version, iss);
             DatabaseInterface db = dbFactory.getInterface(); 
         ) {
             Workspace folder = db.getOrCreateFolder(path.parent, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_WORKSPACE)
@@ -216,12 +347,10 @@ public class SQLRepositoryService implements RepositoryService {
             if (path.part.type != ElementType.NAME)
                 throw LOG.throwing(new Exceptions.InvalidObjectName(path));
             NamedElement linkPart = (NamedElement)path.part;
-            StreamInfo info = StreamInfo.of(iss);
-            
-            
-            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, info.length, info.digest, metadata, false, LocalData.NONE);
-            filestore.put(version, document, info);
-            db.createDocument(id, version, mediaType, info.length, info.digest, metadata);
+            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, staged.getLength(), staged.getDigest(), metadata, false, LocalData.NONE);
+            byte[] content = commitContent(staged, version, document);
+            db.createDocument(id, version, mediaType, staged.getLength(), staged.getDigest(), metadata);
+            storeContent(db, version, content);
             Id folderId = Id.of(folder.getId());
             DocumentLink result;
             try {
@@ -237,13 +366,15 @@ public class SQLRepositoryService implements RepositoryService {
                     throw LOG.throwing(new Exceptions.InvalidObjectName(path));
             }
             db.commit();
+            complete = true;
             return result;
         } catch (SQLException e) {
-            maybeDestroyDocument(version);
             throw LOG.throwing(new RuntimeException(e));
         } catch (IOException e) {
             throw LOG.throwing(new RuntimeException(e));
-        }    
+        } finally {
+            if (!complete) maybeDestroyDocument(version);
+        }
     }
 
     @Override
@@ -253,8 +384,9 @@ public class SQLRepositoryService implements RepositoryService {
         Id id = new Id();
         String baseName = getBaseDocumentName(metadata);
         if (workspaceName.find(RepositoryPath::isVersion).isPresent()) throw LOG.throwing(new Exceptions.InvalidWorkspaceState(workspaceName, Workspace.State.Published));
-
+        boolean complete = false;
         try (
+            Filestore.Staged<Id> staged = filestore.stage(version, iss);
             DatabaseInterface db = dbFactory.getInterface(); 
         ) {    
             Workspace folder = db.getOrCreateFolder(workspaceName, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_WORKSPACE)
@@ -263,19 +395,21 @@ public class SQLRepositoryService implements RepositoryService {
                 throw LOG.throwing(new Exceptions.InvalidWorkspaceState(folder.getName(), folder.getState()));
             Id folderId = Id.of(folder.getId());
             Pattern name = Pattern.of(db.generateUniqueName(folderId, baseName));
-            StreamInfo info = StreamInfo.of(iss);
-            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, info.length, info.digest, metadata, false, LocalData.NONE);
-            filestore.put(version, document, info);
-            db.createDocument(id, version, mediaType, info.length, info.digest, metadata);
+            Document document = new DocumentImpl(new Reference(id.toString(), version.toString()), Instant.now(), mediaType, staged.getLength(), staged.getDigest(), metadata, false, LocalData.NONE);
+            byte[] content = commitContent(staged, version, document);
+            db.createDocument(id, version, mediaType, staged.getLength(), staged.getDigest(), metadata);
+            storeContent(db, version, content);
             DocumentLink result = db.createDocumentLink(folderId, name, id, version, DatabaseInterface.GET_LINK);
             db.commit();
+            complete = true;
             return LOG.exit(result);        
         
         } catch (SQLException e) {
-            maybeDestroyDocument(version);
             throw LOG.throwing(new RuntimeException(e));
         } catch (IOException e) {
             throw LOG.throwing(new RuntimeException(e));            
+        } finally {
+            if (!complete) maybeDestroyDocument(version);
         }
     }
 
@@ -380,8 +514,9 @@ public class SQLRepositoryService implements RepositoryService {
         LOG.entry(path, mediaType, iss, metadata, Options.loggable(options));
         if (path.find(RepositoryPath::isVersion).isPresent()) throw LOG.throwing(new Exceptions.InvalidWorkspaceState(path, Workspace.State.Published));
         Id version = filestore.generateKey();
-
+        boolean complete = false;
         try (
+            Filestore.Staged<Id> staged = iss == null ? null : filestore.stage(version, iss);
             DatabaseInterface db = dbFactory.getInterface(); 
         ) {    
             Workspace folder = db.getOrCreateFolder(path.parent, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_WORKSPACE)
@@ -401,29 +536,36 @@ public class SQLRepositoryService implements RepositoryService {
                 byte[] digest = existingDoc.getDigest();
                 Reference replacing = existingDoc.getReference();
                 metadata = RepositoryObject.mergeMetadata(existingDoc.getMetadata(), metadata);
-                if (iss != null) {
-                    StreamInfo info = StreamInfo.of(iss);
-                    length = info.length;
-                    digest = info.digest;
-                    filestore.put(version, existingDoc.setMetadata(metadata), info);
+                byte[] content;
+                if (staged != null) {
+                    length = staged.getLength();
+                    digest = staged.getDigest();
+                    content = commitContent(staged, version, existingDoc.setMetadata(metadata));
                 } else {
-                    filestore.link(existingDoc.setMetadata(metadata), Id.ofDocument(replacing.version), version);
+                    Document linked = existingDoc.setMetadata(metadata);
+                    content = withContent(db, Id.ofDocument(replacing.version), existingDoc.getLength(), existingContent->existingContent, from->{
+                        filestore.link(linked, from, version);
+                        return null;
+                    });
                 }                
                 
                 Id replacingId = Id.ofDocument(replacing.id);
                 db.createVersion(replacingId, version, mediaType, length, digest, metadata);
+                storeContent(db, version, content);
                 DocumentLink result = db.updateDocumentLink(folderId, part.pattern, replacingId, version, DatabaseInterface.GET_LINK).get();
                 db.commit();           
+                complete = true;
                 return LOG.exit(result);
             } else {
                 if (Options.CREATE_MISSING_ITEM.isIn(options)) {
                     Id docId = new Id();
-                    StreamInfo info = StreamInfo.of(iss);
-                    Document document = new DocumentImpl(new Reference(docId.toString(), version.toString()), Instant.now(), mediaType, info.length, info.digest, metadata, false, LocalData.NONE);
-                    filestore.put(version, document, info);
-                    db.createDocument(docId, version, mediaType, info.length, info.digest, metadata);
+                    Document document = new DocumentImpl(new Reference(docId.toString(), version.toString()), Instant.now(), mediaType, staged.getLength(), staged.getDigest(), metadata, false, LocalData.NONE);
+                    byte[] content = commitContent(staged, version, document);
+                    db.createDocument(docId, version, mediaType, staged.getLength(), staged.getDigest(), metadata);
+                    storeContent(db, version, content);
                     DocumentLink result = db.createDocumentLink(folderId, part.pattern, docId, version, DatabaseInterface.GET_LINK);
                     db.commit();
+                    complete = true;
                     return LOG.exit(result);
                 } else {
                     throw LOG.throwing(new Exceptions.InvalidObjectName(path));
@@ -433,6 +575,8 @@ public class SQLRepositoryService implements RepositoryService {
             throw LOG.throwing(new RuntimeException(e));
         } catch (IOException e) {
             throw LOG.throwing(new RuntimeException(e));            
+        } finally {
+            if (!complete) maybeDestroyDocument(version);
         }
     }
 
@@ -678,7 +822,24 @@ public class SQLRepositoryService implements RepositoryService {
         ) {
             DocumentLink link = db.getDocumentLink(path, DatabaseInterface.GET_LINK)
                 .orElseThrow(()->LOG.throwing(new Exceptions.InvalidObjectName(path)));
-            return LOG.exit(filestore.get(filestore.parseKey(link.getReference().version)));
+            return LOG.exit(withContent(db, filestore.parseKey(link.getReference().version), link.getLength(), ByteArrayInputStream::new, filestore::get));
+        } catch (SQLException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        }
+    }
+
+    @Override
+    public InputStream getData(RepositoryPath path, long offset, long length, Options.Get... options) throws Exceptions.InvalidObjectName, IOException {
+        LOG.entry(path, offset, length, Options.loggable(options));
+        try (
+            DatabaseInterface db = dbFactory.getInterface(); 
+        ) {
+            DocumentLink link = db.getDocumentLink(path, DatabaseInterface.GET_LINK)
+                .orElseThrow(()->LOG.throwing(new Exceptions.InvalidObjectName(path)));
+            return LOG.exit(withContent(db, filestore.parseKey(link.getReference().version), link.getLength(),
+                content->getRange(content, offset, length),
+                version->filestore.get(version, offset, length)
+            ));
         } catch (SQLException e) {
             throw LOG.throwing(new RuntimeException(e));
         }
@@ -692,7 +853,13 @@ public class SQLRepositoryService implements RepositoryService {
         ) {
             DocumentLink link = db.getDocumentLink(path, DatabaseInterface.GET_LINK)
                 .orElseThrow(()->new Exceptions.InvalidObjectName(path));
-            OutputStreamConsumer.of(()->filestore.get(filestore.parseKey(link.getReference().version))).consume(out);
+            withContent(db, filestore.parseKey(link.getReference().version), link.getLength(), content->{
+                out.write(content);
+                return null;
+            }, version->{
+                writeData(version, out);
+                return null;
+            });
             LOG.exit();
         } catch (SQLException e) {
             throw LOG.throwing(new RuntimeException(e));
@@ -712,15 +879,16 @@ public class SQLRepositoryService implements RepositoryService {
         ) {            
             Stream<Document> docs;
             if (searchHistory) {
-                // Unfortunately this is supposed to return the most recent matching doc,
-                // and since we don't plan to convert all metadata into database columns,
-                // we can't do this until AFTER the filter operation is applied to the stream.
-                try (Stream<Document> versions = db.getDocuments(query, searchHistory, DatabaseInterface.GET_DOCUMENT)) {
-                    docs = versions
+                // This is supposed to return the most recent matching version of each document.
+                // If the query is only on database columns, the database can pick the version;
+                // otherwise, since we don't plan to convert all metadata into database columns,
+                // we read matching versions newest first and keep the first which passes the filter.
+                if (db.isDatabaseDocumentQuery(query)) {
+                    docs = db.getLatestDocuments(query, DatabaseInterface.GET_DOCUMENT);
+                } else {
+                    docs = db.getDocumentsByRecency(query, DatabaseInterface.GET_DOCUMENT)
                         .filter(filterBy(query))
-                        .collect(mostRecentDocument())
-                        .values()
-                        .stream();
+                        .filter(firstOfEachDocument());
                 }
             } else {
                 docs = db.getDocuments(query, searchHistory, DatabaseInterface.GET_DOCUMENT)
@@ -841,13 +1009,39 @@ public class SQLRepositoryService implements RepositoryService {
     @Override
     public InputStream getData(Reference rfrnc, RepositoryPath partName) throws Exceptions.InvalidReference, Exceptions.InvalidObjectName, IOException {
         if (!partName.isEmpty()) throw new UnsupportedOperationException("Doesn't support a part name");
-        return filestore.get(filestore.parseKey(rfrnc.version));
+        try {
+            return withContent(null, filestore.parseKey(rfrnc.version), UNKNOWN_LENGTH, ByteArrayInputStream::new, filestore::get);
+        } catch (SQLException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        }
+    }
+
+    @Override
+    public InputStream getData(Reference rfrnc, long offset, long length) throws Exceptions.InvalidReference, IOException {
+        try {
+            return withContent(null, filestore.parseKey(rfrnc.version), UNKNOWN_LENGTH,
+                content->getRange(content, offset, length),
+                version->filestore.get(version, offset, length)
+            );
+        } catch (SQLException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        }
     }
 
     @Override
     public void writeData(Reference rfrnc, RepositoryPath partName, OutputStream out) throws Exceptions.InvalidReference, Exceptions.InvalidObjectName, IOException {
         if (!partName.isEmpty()) throw new UnsupportedOperationException("Doesn't support a part name");
-        OutputStreamConsumer.of(()->filestore.get(filestore.parseKey(rfrnc.version))).consume(out);
+        try {
+            withContent(null, filestore.parseKey(rfrnc.version), UNKNOWN_LENGTH, content->{
+                out.write(content);
+                return null;
+            }, version->{
+                writeData(version, out);
+                return null;
+            });
+        } catch (SQLException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        }
     }
     
     @Override
@@ -890,10 +1084,11 @@ public class SQLRepositoryService implements RepositoryService {
         try (
             DatabaseInterface db = dbFactory.getInterface(); 
         ) { 
-            DocumentLink result = db.copyDocumentLink(path, targetPath, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_LINK);
-            db.deleteObject(path);
+            DocumentLink result = db.moveDocumentLink(path, targetPath, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_LINK);
             db.commit();
             return LOG.exit(result);
+        } catch (SQLIntegrityConstraintViolationException e) {
+            throw LOG.throwing(new Exceptions.InvalidObjectName(targetPath));
         } catch (SQLException e) {
             throw LOG.throwing(new RuntimeException(e));
         }
@@ -907,8 +1102,7 @@ public class SQLRepositoryService implements RepositoryService {
         try (
             DatabaseInterface db = dbFactory.getInterface(); 
         ) { 
-            Workspace result = db.copyFolder(path, targetPath, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_WORKSPACE);
-            db.deleteObject(path);
+            Workspace result = db.moveFolder(path, targetPath, Options.CREATE_MISSING_PARENT.isIn(options), DatabaseInterface.GET_WORKSPACE);
             db.commit();
             return LOG.exit(result);
         } catch (SQLIntegrityConstraintViolationException e) {
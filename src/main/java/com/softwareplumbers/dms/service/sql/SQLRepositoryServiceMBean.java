@@ -5,14 +5,12 @@
  */
 package com.softwareplumbers.dms.service.sql;
 
-import com.softwareplumbers.common.abstractquery.Query;
-import com.softwareplumbers.dms.DocumentLink;
-import com.softwareplumbers.dms.RepositoryPath;
-import com.softwareplumbers.dms.Workspace;
-import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
@@ -25,71 +23,383 @@ public class SQLRepositoryServiceMBean {
     private final XLogger LOG = XLoggerFactory.getXLogger(SQLRepositoryServiceMBean.class);
     private final DocumentDatabase database;
     private final Filestore filestore;
+    private int integrityCheckThreads = 1;
+    private long integrityCheckBandwidth = 0;
+    private double integrityCheckSampleFraction = 0.01;
+    private Path integrityCheckpointDirectory = null;
+    private IntegrityChecker integrityChecker = null;
+    private IntegrityCheckStatus integrityCheckStatus = null;
     
     public SQLRepositoryServiceMBean(DocumentDatabase database, Filestore filestore) {
         this.database = database;
         this.filestore = filestore;
     }
     
+    private static <T> void getFilestores(Filestore store, Class<T> type, List<T> result) {
+        if (type.isInstance(store)) {
+            result.add(type.cast(store));
+        } else if (store instanceof CachingFilestore) {
+            getFilestores(((CachingFilestore)store).getDelegate(), type, result);
+        } else if (store instanceof TieredFilestore) {
+            getFilestores(((TieredFilestore)store).getFastTier(), type, result);
+            getFilestores(((TieredFilestore)store).getBulkTier(), type, result);
+        } else if (store instanceof StripedFilestore) {
+            for (LocalFilesystem volume : ((StripedFilestore)store).getVolumes())
+                getFilestores(volume, type, result);
+        }
+    }
+    
+    /** Get the filestores of the given type, looking through any cache, tiers, or volumes in front of them. */
+    private <T> List<T> getFilestores(Class<T> type) {
+        List<T> result = new ArrayList<>();
+        getFilestores(filestore, type, result);
+        return result;
+    }
+    
     static class IntegrityCheckStatus {
         public int ok = 0;
         public int failed = 0;
         public int fixed = 0;
         public int errors = 0;
+        public int skipped = 0;
+        public long bytes = 0;
+        private final long started = System.currentTimeMillis();
+        private long finished = 0;
+        
+        synchronized void ok() { ok++; }
+        synchronized void failed() { failed++; }
+        synchronized void fixed() { fixed++; }
+        synchronized void error() { errors++; }
+        synchronized void skipped() { skipped++; }
+        synchronized void read(long count) { bytes += count; }
+        synchronized void finish() { finished = System.currentTimeMillis(); }
+        synchronized boolean isFinished() { return finished != 0; }
+        
         @Override
-        public String toString() { return String.format("OK: %d, Failed: %d, Fixed: %d, Errors: %d", ok, failed, fixed, errors); }
+        public synchronized String toString() { 
+            long elapsed = (finished == 0 ? System.currentTimeMillis() : finished) - started;
+            double throughput = elapsed == 0 ? 0 : bytes * 1000.0 / elapsed / (1024 * 1024);
+            return String.format("OK: %d, Failed: %d, Fixed: %d, Errors: %d, Skipped: %d, Bytes: %d, MB/s: %.2f%s", 
+                ok, failed, fixed, errors, skipped, bytes, throughput, finished == 0 ? "" : ", Finished"); 
+        }
     }
     
-    void checkIntegrity(String path, boolean fix, IntegrityCheckStatus status) {
-        LOG.entry(path, fix, status);
-        try (DatabaseInterface ifc = database.getInterface()) {            
-            try (Stream<DocumentLink> docs = ifc.getDocumentLinks(RepositoryPath.valueOf(path).add("*").setVersion("*"), Query.UNBOUNDED, true, true, DatabaseInterface.GET_LINK)) {
-                docs.forEach(link->{
-                    try {
-                        LOG.trace("Got link {}", link.getReference());
-                        StreamInfo info = StreamInfo.of(()->filestore.get(filestore.parseKey(link.getReference().getVersion())));
-                        if (Arrays.equals(info.digest, link.getDigest())) {
-                            LOG.info("OK: {}", link.getName());
-                            status.ok++;
-                        } else {
-                            LOG.info("FAILED: {}", link.getName());
-                            LOG.info("Actual: {}", link.getDigest());
-                            LOG.info("Calculated: {}", info.digest);
-                            status.failed++;
-                            if (fix) {
-                                ifc.updateDigest(link.getReference(), info.digest);
-                                ifc.commit();
-                                status.fixed++;
-                            }
-                        }
-                    } catch (Exception e) {
-                        status.errors++;
-                        LOG.catching(e);
-                        LOG.error("Error checking integrity ", e);                        
-                    }
-                });
-            }             
-            try (Stream<Workspace> docs = ifc.getFolders(RepositoryPath.valueOf(path).add("*"), Query.UNBOUNDED, true, DatabaseInterface.GET_WORKSPACE)) {
-                docs.forEach(workspace->{
-                    checkIntegrity(path + "/" + workspace.getName().part, fix, status);
-                });
-            } catch (Exception e) {
-                status.errors++;
-                LOG.catching(e);
-                LOG.error("Error checking integrity ", e);                                        
-            }
-            
-        } catch (SQLException e) {
-            status.errors++;
-            LOG.catching(e);
-            LOG.error("Error checking integrity ", e);
-        }
+    private IntegrityChecker getIntegrityChecker(String path, IntegrityChecker.Mode mode) {
+        IntegrityChecker checker = new IntegrityChecker(database, filestore);
+        checker.setThreads(integrityCheckThreads);
+        checker.setMaxBytesPerSecond(integrityCheckBandwidth);
+        checker.setMode(mode);
+        checker.setSampleFraction(integrityCheckSampleFraction);
+        if (integrityCheckpointDirectory != null) 
+            checker.setCheckpoint(integrityCheckpointDirectory.resolve(String.format("integrity-%s-%08x.checkpoint", mode.name().toLowerCase(), path.hashCode())));
+        return checker;
+    }
+    
+    void checkIntegrity(String path, boolean fix, IntegrityChecker.Mode mode, IntegrityCheckStatus status) {
+        LOG.entry(path, fix, mode, status);
+        getIntegrityChecker(path, mode).check(path, fix, status);
         LOG.exit();
     }
     
+    void checkIntegrity(String path, boolean fix, IntegrityCheckStatus status) {
+        checkIntegrity(path, fix, IntegrityChecker.Mode.FULL, status);
+    }
+    
     public String checkIntegrity(String path, boolean fix) {
         IntegrityCheckStatus status = new IntegrityCheckStatus();
         checkIntegrity(path, fix, status);
         return status.toString();
     }
+    
+    /** Check the integrity of versions not verified by a previous check, and a sample of the others.
+     * 
+     * @param path Path to folder
+     * @param fix If true, store the calculated digest for any version where it does not match
+     * @return Status message
+     */
+    public String checkIntegrityIncremental(String path, boolean fix) {
+        IntegrityCheckStatus status = new IntegrityCheckStatus();
+        checkIntegrity(path, fix, IntegrityChecker.Mode.INCREMENTAL, status);
+        return status.toString();
+    }
+    
+    /** Check that the stored content of every version has the recorded length, without reading it.
+     * 
+     * @param path Path to folder
+     * @return Status message
+     */
+    public String checkIntegrityMetadata(String path) {
+        IntegrityCheckStatus status = new IntegrityCheckStatus();
+        checkIntegrity(path, false, IntegrityChecker.Mode.METADATA, status);
+        return status.toString();
+    }
+    
+    /** Set the fraction of previously verified versions hashed again by an incremental integrity check.
+     * 
+     * @param integrityCheckSampleFraction fraction between 0 and 1 (default 0.01)
+     */
+    public void setIntegrityCheckSampleFraction(double integrityCheckSampleFraction) {
+        this.integrityCheckSampleFraction = integrityCheckSampleFraction;
+    }
+    
+    /** Set the number of versions hashed in parallel by an integrity check.
+     * 
+     * @param integrityCheckThreads number of threads (default 1)
+     */
+    public void setIntegrityCheckThreads(int integrityCheckThreads) {
+        this.integrityCheckThreads = integrityCheckThreads;
+    }
+    
+    /** Set the maximum rate at which an integrity check reads content.
+     * 
+     * @param integrityCheckBandwidth rate in bytes per second; zero (the default) for no limit
+     */
+    public void setIntegrityCheckBandwidth(long integrityCheckBandwidth) {
+        this.integrityCheckBandwidth = integrityCheckBandwidth;
+    }
+    
+    /** Set the directory in which integrity check progress is recorded.
+     * 
+     * If not set, an interrupted integrity check must start again from the beginning.
+     * 
+     * @param integrityCheckpointDirectory path to directory
+     */
+    public void setIntegrityCheckpointDirectory(String integrityCheckpointDirectory) {
+        this.integrityCheckpointDirectory = Paths.get(integrityCheckpointDirectory);
+    }
+    
+    /** Start an integrity check in the background.
+     * 
+     * If a previous check of the same path was stopped and a checkpoint directory is configured,
+     * versions already checked are skipped.
+     * 
+     * @param path Path to folder
+     * @param fix If true, store the calculated digest for any version where it does not match
+     * @return Status message
+     */
+    public String startIntegrityCheck(String path, boolean fix) {
+        return startIntegrityCheck(path, fix, IntegrityChecker.Mode.FULL.name());
+    }
+    
+    /** Start an integrity check in the background.
+     * 
+     * @param path Path to folder
+     * @param fix If true, store the calculated digest for any version where it does not match
+     * @param mode One of 'full', 'incremental', or 'metadata'
+     * @return Status message
+     */
+    public synchronized String startIntegrityCheck(String path, boolean fix, String mode) {
+        LOG.entry(path, fix, mode);
+        if (integrityCheckStatus != null && !integrityCheckStatus.isFinished()) 
+            return LOG.exit("Error: integrity check already running");
+        IntegrityChecker.Mode checkMode;
+        try {
+            checkMode = IntegrityChecker.Mode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return LOG.exit("Error: unknown mode " + mode);
+        }
+        IntegrityChecker checker = getIntegrityChecker(path, checkMode);
+        IntegrityCheckStatus status = new IntegrityCheckStatus();
+        Thread thread = new Thread(()->checker.check(path, fix, status), "Integrity check " + path);
+        thread.setDaemon(true);
+        integrityChecker = checker;
+        integrityCheckStatus = status;
+        thread.start();
+        return LOG.exit("Started");
+    }
+    
+    /** Stop a background integrity check.
+     * 
+     * Versions already being hashed are completed before the check finishes.
+     */
+    public synchronized void stopIntegrityCheck() {
+        if (integrityChecker != null) integrityChecker.stop();
+    }
+    
+    /** Get progress of the current or most recent background integrity check.
+     * 
+     * @return counts of versions checked, bytes read, and throughput
+     */
+    public synchronized String getIntegrityCheckStatus() {
+        if (integrityCheckStatus == null) return "Error: no integrity check has been started";
+        return integrityCheckStatus.toString();
+    }
+    
+    public String getPathCacheStatistics() {
+        return database.getPathCache().toString();
+    }
+    
+    public void clearPathCache() {
+        database.getPathCache().clear();
+    }
+    
+    public String getFilestoreCacheStatistics() {
+        List<CachingFilestore> caches = getFilestores(CachingFilestore.class);
+        if (caches.isEmpty()) return "Error: filestore is not cached";
+        return caches.stream().map(Object::toString).collect(Collectors.joining("; "));
+    }
+    
+    public void clearFilestoreCache() {
+        getFilestores(CachingFilestore.class).forEach(CachingFilestore::clear);
+    }
+    
+    public String getFilestoreVolumeStatistics() {
+        List<StripedFilestore> stores = getFilestores(StripedFilestore.class);
+        if (stores.isEmpty()) return "Error: filestore is not striped";
+        return stores.stream().map(StripedFilestore::getVolumeStatistics).collect(Collectors.joining("\n"));
+    }
+    
+    /** Fill in the materialized path column for nodes created before it existed.
+     * 
+     * Each batch is committed separately, so the operation can be interrupted and resumed.
+     * 
+     * @param batchSize number of nodes to update in each batch
+     * @return Number of nodes updated
+     */
+    public String backfillPaths(int batchSize) {
+        LOG.entry(batchSize);
+        int total = 0;
+        try (DatabaseInterface ifc = database.getInterface()) {
+            int updated;
+            do {
+                updated = ifc.backfillPaths(batchSize);
+                ifc.commit();
+                total += updated;
+                LOG.debug("Backfilled {} paths", total);
+            } while (updated > 0);
+        } catch (SQLException e) {
+            LOG.catching(e);
+            LOG.error("Error backfilling paths ", e);
+            return LOG.exit(String.format("Updated: %d, Error: %s", total, e.getMessage()));
+        }
+        return LOG.exit(String.format("Updated: %d", total));
+    }
+    
+    /** Rebuild the node closure table used for recursive descendant searches.
+     * 
+     * @return Number of rows in the rebuilt closure table
+     */
+    public String rebuildClosure() {
+        LOG.entry();
+        try (DatabaseInterface ifc = database.getInterface()) {
+            int rows = ifc.rebuildClosure();
+            ifc.commit();
+            return LOG.exit(String.format("Rows: %d", rows));
+        } catch (SQLException e) {
+            LOG.catching(e);
+            LOG.error("Error rebuilding closure ", e);
+            return LOG.exit(String.format("Error: %s", e.getMessage()));
+        }
+    }
+    
+    /** Delete stored files no longer referenced by any version.
+     * 
+     * Only supported by ContentAddressedFilesystem.
+     * 
+     * @return Number of files deleted
+     */
+    public String collectGarbage() {
+        LOG.entry();
+        List<ContentAddressedFilesystem> stores = getFilestores(ContentAddressedFilesystem.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore does not support garbage collection");
+        int deleted = stores.stream().mapToInt(ContentAddressedFilesystem::collectGarbage).sum();
+        return LOG.exit(String.format("Deleted: %d", deleted));
+    }
+    
+    /** Delete stored files which do not belong to any version.
+     * 
+     * Reads the ids of all versions from the database, then deletes any file in a local filestore
+     * whose key is not among them and which was last changed more than gracePeriod seconds before
+     * the ids were read. Content committed to the filestore by an upload which failed before its
+     * version was committed to the database is only reclaimed this way. Progress is checkpointed
+     * in each filestore, so an interrupted collection may simply be run again.
+     * 
+     * Only supported by LocalFilesystem and its subclasses. A PackedFilesystem also deletes packed
+     * files which are not referenced, provided their segment was last changed before the grace period.
+     * 
+     * @param threads Number of shards of each filestore to sweep in parallel
+     * @param gracePeriod Minimum age in seconds of files to delete
+     * @return Number of files deleted
+     */
+    public String collectOrphans(int threads, long gracePeriod) {
+        LOG.entry(threads, gracePeriod);
+        List<LocalFilesystem> stores = getFilestores(LocalFilesystem.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore does not support orphan collection");
+        long cutoff = System.currentTimeMillis() - gracePeriod * 1000;
+        SortedIdSet versions;
+        try (DatabaseInterface ifc = database.getInterface()) {
+            versions = ifc.getVersionIds();
+        } catch (SQLException e) {
+            LOG.catching(e);
+            LOG.error("Error reading version ids ", e);
+            return LOG.exit(String.format("Error: %s", e.getMessage()));
+        }
+        LOG.debug("Read {} version ids", versions.size());
+        int deleted = stores.stream().mapToInt(store->store.collectOrphans(versions::contains, cutoff, threads)).sum();
+        return LOG.exit(String.format("Versions: %d, Deleted: %d", versions.size(), deleted));
+    }
+    
+    /** Compact segments of a packed filestore which contain mostly removed files.
+     * 
+     * Only supported by PackedFilesystem.
+     * 
+     * @return Number of segments compacted
+     */
+    public String compactFilestore() {
+        LOG.entry();
+        List<PackedFilesystem> stores = getFilestores(PackedFilesystem.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore does not support compaction");
+        int compacted = stores.stream().mapToInt(PackedFilesystem::compact).sum();
+        return LOG.exit(String.format("Compacted: %d", compacted));
+    }
+    
+    /** Move stored files from the previous layout configured for the filestore into the current one.
+     * 
+     * Only supported by LocalFilesystem and its subclasses.
+     * 
+     * @param threads Number of files to move in parallel
+     * @return Number of files moved
+     */
+    public String migrateFilestore(int threads) {
+        LOG.entry(threads);
+        List<LocalFilesystem> stores = getFilestores(LocalFilesystem.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore does not support migration");
+        int migrated = stores.stream().mapToInt(store->store.migrate(threads)).sum();
+        return LOG.exit(String.format("Migrated: %d", migrated));
+    }
+    
+    /** Move files in a striped filestore onto the volumes to which they are assigned.
+     * 
+     * Only supported by StripedFilestore.
+     * 
+     * @param threads Number of files to move in parallel
+     * @return Number of files moved
+     */
+    public String rebalanceFilestore(int threads) {
+        LOG.entry(threads);
+        List<StripedFilestore> stores = getFilestores(StripedFilestore.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore is not striped");
+        int moved = stores.stream().mapToInt(store->store.rebalance(threads)).sum();
+        return LOG.exit(String.format("Moved: %d", moved));
+    }
+    
+    /** Move files between the tiers of a tiered filestore.
+     * 
+     * Only supported by TieredFilestore.
+     * 
+     * @return Number of files moved
+     */
+    public String moveFilestoreTiers() {
+        LOG.entry();
+        List<TieredFilestore> stores = getFilestores(TieredFilestore.class);
+        if (stores.isEmpty()) 
+            return LOG.exit("Error: filestore is not tiered");
+        int moved = stores.stream().mapToInt(TieredFilestore::move).sum();
+        return LOG.exit(String.format("Moved: %d", moved));
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.nio.ByteBuffer;
+
+/** Compact set of ids, held outside the heap.
+ *
+ * Ids may be added in any order; once sort has been called the set may be queried with
+ * contains. Each id occupies 16 bytes of direct memory, so a set of ten million ids needs
+ * 160MB outside the heap and adds almost nothing to garbage collection.
+ *
+ * @author jonathan
+ */
+public class SortedIdSet {
+
+    private static final int ID_SIZE = 16;
+    private static final int MAX_SIZE = Integer.MAX_VALUE / ID_SIZE;
+
+    private ByteBuffer data;
+    private int size = 0;
+    private boolean sorted = true;
+
+    public SortedIdSet(int capacity) {
+        data = ByteBuffer.allocateDirect(Math.max(capacity, 1) * ID_SIZE);
+    }
+
+    public SortedIdSet() {
+        this(1024);
+    }
+
+    private void grow() {
+        if (size == MAX_SIZE) throw new IllegalStateException("Too many ids");
+        ByteBuffer larger = ByteBuffer.allocateDirect((int)Math.min((long)data.capacity() * 2, (long)MAX_SIZE * ID_SIZE));
+        data.position(0).limit(size * ID_SIZE);
+        larger.put(data);
+        data = larger;
+    }
+
+    private long high(int index) {
+        return data.getLong(index * ID_SIZE);
+    }
+
+    private long low(int index) {
+        return data.getLong(index * ID_SIZE + 8);
+    }
+
+    private int compare(int a, int b) {
+        int result = Long.compare(high(a), high(b));
+        return result == 0 ? Long.compare(low(a), low(b)) : result;
+    }
+
+    private void swap(int a, int b) {
+        long high = high(a);
+        long low = low(a);
+        data.putLong(a * ID_SIZE, high(b)).putLong(a * ID_SIZE + 8, low(b));
+        data.putLong(b * ID_SIZE, high).putLong(b * ID_SIZE + 8, low);
+    }
+
+    private void siftDown(int root, int end) {
+        int child;
+        while ((child = 2 * root + 1) < end) {
+            if (child + 1 < end && compare(child, child + 1) < 0) child++;
+            if (compare(root, child) >= 0) return;
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    /** Add an id to the set.
+     *
+     * @param id Id to add
+     */
+    public void add(Id id) {
+        ByteBuffer bytes = ByteBuffer.wrap(id.getBytes());
+        if ((size + 1) * ID_SIZE > data.capacity()) grow();
+        data.putLong(size * ID_SIZE, bytes.getLong(0)).putLong(size * ID_SIZE + 8, bytes.getLong(8));
+        size++;
+        sorted = false;
+    }
+
+    /** Sort the ids added so far, so that the set can be queried.
+     *
+     * Uses an in-place heap sort, so no further memory is needed.
+     */
+    public void sort() {
+        for (int i = size / 2 - 1; i >= 0; i--) siftDown(i, size);
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    /** Check whether the set contains an id.
+     *
+     * @param id Id to look for
+     * @return true if the id has been added to the set
+     * @throws IllegalStateException if ids have been added since the set was sorted
+     */
+    public boolean contains(Id id) {
+        if (!sorted) throw new IllegalStateException("Set must be sorted before it is queried");
+        ByteBuffer bytes = ByteBuffer.wrap(id.getBytes());
+        long high = bytes.getLong(0);
+        long low = bytes.getLong(8);
+        int from = 0;
+        int to = size - 1;
+        while (from <= to) {
+            int mid = (from + to) >>> 1;
+            int result = Long.compare(high(mid), high);
+            if (result == 0) result = Long.compare(low(mid), low);
+            if (result < 0) from = mid + 1;
+            else if (result > 0) to = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SortedIdSet(%d)", size);
+    }
+}
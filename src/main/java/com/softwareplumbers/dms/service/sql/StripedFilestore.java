@@ -0,0 +1,435 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Filestore which spreads files across several volumes.
+ *
+ * Each key is assigned to a volume by consistent hashing of its bytes, so that adding or
+ * removing a volume changes the placement of only a proportionate share of the keys. Each
+ * volume is a LocalFilesystem, normally with its base path on a different disk.
+ *
+ * Files are looked for first on the volume to which their key is assigned, and then on every
+ * other volume, so the store remains usable after volumes are added. Volumes being taken out
+ * of service should be configured as retired volumes, which are read but never written; rebalance
+ * moves every file onto the volume to which its key is assigned, after which retired volumes
+ * are empty.
+ *
+ * @author jonathan
+ */
+public class StripedFilestore implements Filestore<Id> {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(StripedFilestore.class);
+    /** Number of points on the hash ring for each volume */
+    private static final int VIRTUAL_NODES = 128;
+    private static final int LOCK_STRIPES = 64;
+    private static final double MEGABYTE = 1024 * 1024;
+
+    /** A volume, with counters of the data read and written. */
+    private static class Volume {
+        final LocalFilesystem store;
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        private long sampleTime = System.nanoTime();
+        private long sampleBytesRead;
+        private long sampleBytesWritten;
+
+        Volume(LocalFilesystem store) {
+            this.store = store;
+        }
+
+        InputStream counted(InputStream is) {
+            reads.incrementAndGet();
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    int result = super.read();
+                    if (result >= 0) bytesRead.incrementAndGet();
+                    return result;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int result = super.read(buffer, offset, length);
+                    if (result > 0) bytesRead.addAndGet(result);
+                    return result;
+                }
+            };
+        }
+
+        long transferred(long count) {
+            reads.incrementAndGet();
+            bytesRead.addAndGet(count);
+            return count;
+        }
+
+        void written(long length) {
+            writes.incrementAndGet();
+            bytesWritten.addAndGet(length);
+        }
+
+        /** Format counters, with read and write rates since statistics were last requested. */
+        synchronized String statistics() {
+            long now = System.nanoTime();
+            long read = bytesRead.get();
+            long written = bytesWritten.get();
+            double seconds = Math.max(now - sampleTime, 1L) / 1e9;
+            String result = String.format("%s: Reads: %d, Bytes read: %d, Read MB/s: %.2f, Writes: %d, Bytes written: %d, Write MB/s: %.2f",
+                store.getBasePath(), reads.get(), read, (read - sampleBytesRead) / seconds / MEGABYTE, 
+                writes.get(), written, (written - sampleBytesWritten) / seconds / MEGABYTE);
+            sampleTime = now;
+            sampleBytesRead = read;
+            sampleBytesWritten = written;
+            return result;
+        }
+    }
+
+    /** Operation on a volume which may fail with an IOException. */
+    @FunctionalInterface
+    private interface VolumeOperation<T> {
+        T apply(Volume volume) throws IOException;
+    }
+
+    private final List<Volume> volumes;
+    private final NavigableMap<Long, Volume> ring = new TreeMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicInteger nextStagingVolume = new AtomicInteger();
+    private volatile List<Volume> retiredVolumes = Collections.emptyList();
+
+    public StripedFilestore(List<LocalFilesystem> volumes) {
+        if (volumes.isEmpty()) throw new IllegalArgumentException("At least one volume is required");
+        this.volumes = volumes.stream().map(Volume::new).collect(Collectors.toList());
+        for (Volume volume : this.volumes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                String point = volume.store.getBasePath().toString() + "#" + i;
+                ring.put(hash(point.getBytes(StandardCharsets.UTF_8)), volume);
+            }
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    /** Set volumes which are being taken out of service.
+     *
+     * Retired volumes are searched for files not found on the volume to which their key is
+     * assigned, but no new files are written to them.
+     *
+     * @param retiredVolumes volumes to be emptied by rebalance
+     */
+    public void setRetiredVolumes(List<LocalFilesystem> retiredVolumes) {
+        this.retiredVolumes = retiredVolumes.stream().map(Volume::new).collect(Collectors.toList());
+    }
+
+    /** Get all volumes, including retired volumes.
+     *
+     * @return list of volumes
+     */
+    public List<LocalFilesystem> getVolumes() {
+        return getAllVolumes().stream().map(volume->volume.store).collect(Collectors.toList());
+    }
+
+    private List<Volume> getAllVolumes() {
+        List<Volume> result = new ArrayList<>(volumes);
+        result.addAll(retiredVolumes);
+        return result;
+    }
+
+    /** 64 bit FNV-1a hash, with the MurmurHash3 finalizer to spread similar inputs around the ring. */
+    private static long hash(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private Volume volumeFor(Id key) {
+        Map.Entry<Long, Volume> entry = ring.ceilingEntry(hash(key.getBytes()));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    private Object lockFor(Id key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /** Apply an operation to the volume holding a file.
+     *
+     * Rebalancing copies a file to its assigned volume before removing it from any other, so if
+     * the file is found on none of the other volumes we check the assigned volume again.
+     */
+    private <T> T withVolume(Id key, VolumeOperation<T> operation) throws IOException {
+        Volume assigned = volumeFor(key);
+        try {
+            return operation.apply(assigned);
+        } catch (NotFound e) {
+            // may not have been rebalanced yet
+        }
+        for (Volume volume : getAllVolumes()) {
+            if (volume == assigned) continue;
+            try {
+                return operation.apply(volume);
+            } catch (NotFound e) {
+                // try the next volume
+            }
+        }
+        return operation.apply(assigned);
+    }
+
+    @Override
+    public Id parseKey(String key) {
+        return Id.ofVersion(key);
+    }
+
+    @Override
+    public Id generateKey() {
+        return new Id();
+    }
+
+    @Override
+    public InputStream get(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            return LOG.exit(withVolume(key, volume->volume.counted(volume.store.get(key))));
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    @Override
+    public InputStream get(Id key, long offset, long length) throws NotFound {
+        LOG.entry(key, offset, length);
+        try {
+            return LOG.exit(withVolume(key, volume->volume.counted(volume.store.get(key, offset, length))));
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    @Override
+    public long size(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            return LOG.exit(withVolume(key, volume->volume.store.size(key)));
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    @Override
+    public long transferTo(Id key, WritableByteChannel target) throws IOException {
+        LOG.entry(key, target);
+        return LOG.exit(withVolume(key, volume->volume.transferred(volume.store.transferTo(key, target))));
+    }
+
+    @Override
+    public void put(Id key, Document document, StreamInfo iss) {
+        LOG.entry(key, document, "<stream>");
+        Volume volume = volumeFor(key);
+        volume.store.put(key, document, iss);
+        volume.written(iss.length);
+        LOG.exit();
+    }
+
+    /** Stage data on a volume, copying it to the assigned volume on commit if necessary. */
+    private Staged<Id> stage(Volume volume, InputStreamSupplier iss) throws IOException {
+        Staged<Id> staged = volume.store.stage(iss);
+        return new Staged<Id>() {
+            @Override
+            public long getLength() { return staged.getLength(); }
+            @Override
+            public byte[] getDigest() { return staged.getDigest(); }
+            @Override
+            public InputStream open() throws IOException { return staged.open(); }
+            @Override
+            public void commit(Id key, Document document) throws IOException {
+                Volume assigned = volumeFor(key);
+                if (assigned == volume) {
+                    staged.commit(key, document);
+                } else {
+                    try (Staged<Id> copy = assigned.store.stage(key, staged::open)) {
+                        copy.commit(key, document);
+                    }
+                }
+                assigned.written(staged.getLength());
+            }
+            @Override
+            public void close() throws IOException { staged.close(); }
+        };
+    }
+
+    /** Stage data on the next volume in turn.
+     *
+     * The data must be copied on commit unless the key is assigned to the same volume, so
+     * callers which know the key should use stage(key, iss).
+     */
+    @Override
+    public Staged<Id> stage(InputStreamSupplier iss) throws IOException {
+        LOG.entry("<stream>");
+        int next = (nextStagingVolume.getAndIncrement() & Integer.MAX_VALUE) % volumes.size();
+        return LOG.exit(stage(volumes.get(next), iss));
+    }
+
+    @Override
+    public Staged<Id> stage(Id key, InputStreamSupplier iss) throws IOException {
+        LOG.entry(key, "<stream>");
+        return LOG.exit(stage(volumeFor(key), iss));
+    }
+
+    /** Link data to a new key.
+     *
+     * Hard links cannot span volumes, so the data is copied if the new key is assigned to a
+     * different volume from the one holding the existing file.
+     */
+    @Override
+    public void link(Document document, Id from, Id to) throws NotFound {
+        LOG.entry(document, from, to);
+        Volume assigned = volumeFor(to);
+        try {
+            synchronized(lockFor(from)) {
+                withVolume(from, volume->{
+                    if (volume == assigned) {
+                        volume.store.link(document, from, to);
+                    } else {
+                        try (Staged<Id> copy = assigned.store.stage(to, ()->volume.store.get(from))) {
+                            copy.commit(to, document);
+                            assigned.written(copy.getLength());
+                        }
+                    }
+                    return to;
+                });
+            }
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        LOG.exit();
+    }
+
+    /** Remove a file from every volume.
+     *
+     * A copy may be left on a second volume by an interrupted rebalance, so we check all volumes.
+     */
+    @Override
+    public void remove(Id key) throws NotFound {
+        LOG.entry(key);
+        boolean removed = false;
+        synchronized(lockFor(key)) {
+            for (Volume volume : getAllVolumes()) {
+                try {
+                    volume.store.remove(key);
+                    removed = true;
+                } catch (NotFound e) {
+                    // try the next volume
+                }
+            }
+        }
+        if (!removed) throw LOG.throwing(new NotFound(key));
+        LOG.exit();
+    }
+
+    private int rebalance(Volume volume, Id key) {
+        Volume assigned = volumeFor(key);
+        if (assigned == volume) return 0;
+        synchronized(lockFor(key)) {
+            try {
+                try {
+                    assigned.store.remove(key);
+                } catch (NotFound e) {
+                    // expected, unless a previous rebalance was interrupted
+                }
+                try (Staged<Id> copy = assigned.store.stage(key, ()->volume.store.get(key))) {
+                    copy.commit(key, null);
+                }
+                volume.store.remove(key);
+                return 1;
+            } catch (NotFound e) {
+                // removed since the volume was listed
+                return 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Move every file onto the volume to which its key is assigned.
+     *
+     * Each file is copied before it is removed from its original volume, so the store may be
+     * used while rebalancing runs. If interrupted, rebalancing may simply be run again.
+     *
+     * @param threads Number of files to move in parallel
+     * @return The number of files moved
+     */
+    public int rebalance(int threads) {
+        LOG.entry(threads);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int moved = 0;
+        try {
+            for (Volume volume : getAllVolumes()) {
+                try (Stream<Id> keys = volume.store.keys()) {
+                    moved += pool.submit(()->keys
+                        .parallel()
+                        .mapToInt(key->rebalance(volume, key))
+                        .sum()
+                    ).get();
+                }
+            }
+            return LOG.exit(moved);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        } catch (InterruptedException | ExecutionException e) {
+            throw LOG.throwing(new RuntimeException(e));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Get counts of the reads and writes on each volume since startup.
+     *
+     * Read and write rates are averaged over the interval since statistics were last requested.
+     * 
+     * @return One line of statistics for each volume
+     */
+    public String getVolumeStatistics() {
+        return getAllVolumes().stream().map(Volume::statistics).collect(Collectors.joining("\n"));
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.RepositoryPath;
+
+/** Node visited by a walk of a subtree.
+ *
+ * For a document link, document holds the version the link refers to (or, when all versions
+ * are included, one of the versions of the linked document); for a folder it is null.
+ *
+ * @author jonathan
+ */
+public class SubtreeNode {
+    public final Info info;
+    public final RepositoryPath path;
+    public final Document document;
+    
+    public SubtreeNode(Info info, RepositoryPath path, Document document) {
+        this.info = info;
+        this.path = path;
+        this.document = document;
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Filestore which keeps recently used files on a fast tier and older files on a bulk tier.
+ *
+ * New files are always written to the fast tier. The keys of files on the fast tier are held
+ * in a compact index outside the heap, along with the time each was last read to the second,
+ * so reads go straight to the right tier. The index is built from the fast tier in a background
+ * thread when the store is first used, taking the modification time of each file as its last
+ * access; until it is complete, files missing from the index are looked for on both tiers and
+ * no files are moved.
+ *
+ * Files on the fast tier which have not been read for demotionAge seconds are moved to the bulk
+ * tier, and files on the bulk tier read at least promotionThreshold times between moves are
+ * moved back. Moves run every moverInterval seconds in a background thread, or on demand via
+ * move. Each file is copied before it is removed from its original tier, so it can always be
+ * read from one tier or the other. A file read while it is being demoted stays on the fast tier.
+ * Reads are counted for at most maxColdReadEntries files on the bulk tier between moves.
+ *
+ * @author jonathan
+ */
+public class TieredFilestore implements Filestore<Id>, Closeable {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(TieredFilestore.class);
+    private static final int LOCK_STRIPES = 64;
+
+    public static final long DEFAULT_DEMOTION_AGE = 30 * 24 * 60 * 60;
+    public static final int DEFAULT_PROMOTION_THRESHOLD = 3;
+    public static final int DEFAULT_MAX_COLD_READ_ENTRIES = 100000;
+
+    /** Operation on a tier which may fail with an IOException. */
+    @FunctionalInterface
+    private interface TierOperation<T> {
+        T apply(Filestore<Id> tier) throws IOException;
+    }
+
+    private final LocalFilesystem fast;
+    private final Filestore<Id> bulk;
+    /** Time each file on the fast tier was last read */
+    private final AccessTimeIndex index = new AccessTimeIndex();
+    /** Number of reads of each file on the bulk tier since the last move */
+    private final Map<Id, AtomicInteger> coldReads = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private long demotionAge = DEFAULT_DEMOTION_AGE;
+    private int promotionThreshold = DEFAULT_PROMOTION_THRESHOLD;
+    private int maxColdReadEntries = DEFAULT_MAX_COLD_READ_ENTRIES;
+    private long moverInterval = 0;
+    private ScheduledExecutorService mover;
+    private Thread indexer;
+    private volatile boolean opened = false;
+    private volatile boolean indexed = false;
+
+    public TieredFilestore(LocalFilesystem fast, Filestore<Id> bulk) {
+        this.fast = fast;
+        this.bulk = bulk;
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    public LocalFilesystem getFastTier() {
+        return fast;
+    }
+
+    public Filestore<Id> getBulkTier() {
+        return bulk;
+    }
+
+    /** Set the time after which an unread file is moved to the bulk tier.
+     *
+     * @param demotionAge age in seconds (default 30 days)
+     */
+    public void setDemotionAge(long demotionAge) {
+        this.demotionAge = demotionAge;
+    }
+
+    /** Set the number of reads between moves after which a file is moved back to the fast tier.
+     *
+     * @param promotionThreshold number of reads (default 3); zero disables promotion
+     */
+    public void setPromotionThreshold(int promotionThreshold) {
+        this.promotionThreshold = promotionThreshold;
+    }
+
+    /** Set the number of files on the bulk tier for which reads are counted between moves.
+     *
+     * Once the limit is reached, reads of other files on the bulk tier are not counted until the
+     * next move, so they cannot be promoted by it.
+     *
+     * @param maxColdReadEntries number of files (default 100000)
+     */
+    public void setMaxColdReadEntries(int maxColdReadEntries) {
+        this.maxColdReadEntries = maxColdReadEntries;
+    }
+
+    /** Set the interval between background moves.
+     *
+     * @param moverInterval interval in seconds; zero (the default) disables background moves
+     */
+    public void setMoverInterval(long moverInterval) {
+        this.moverInterval = moverInterval;
+    }
+
+    private Object lockFor(Id key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private long lastModified(Id key) {
+        try {
+            return Files.getLastModifiedTime(fast.toPath(key)).toMillis();
+        } catch (IOException e) {
+            // packed, or not yet migrated to the current layout
+            return System.currentTimeMillis();
+        }
+    }
+
+    /** Add every file on the fast tier to the index, keeping any entries made meanwhile. */
+    private void buildIndex() {
+        LOG.entry();
+        try (Stream<Id> keys = fast.keys()) {
+            Iterator<Id> iterator = keys.iterator();
+            while (iterator.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    LOG.exit();
+                    return;
+                }
+                Id key = iterator.next();
+                index.putIfAbsent(key, lastModified(key));
+            }
+            indexed = true;
+            LOG.debug("Indexed {} files on fast tier", index.size());
+        } catch (IOException | UncheckedIOException e) {
+            LOG.error("Error indexing fast tier ", e);
+        }
+        LOG.exit();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) return;
+        synchronized(this) {
+            if (opened) return;
+            indexer = new Thread(this::buildIndex, "TieredFilestore indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+            if (moverInterval > 0) {
+                mover = Executors.newSingleThreadScheduledExecutor(runnable->{
+                    Thread thread = new Thread(runnable, "TieredFilestore mover");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                mover.scheduleWithFixedDelay(()->{
+                    try {
+                        move();
+                    } catch (RuntimeException e) {
+                        LOG.error("Error moving files between tiers ", e);
+                    }
+                }, moverInterval, moverInterval, TimeUnit.SECONDS);
+            }
+            opened = true;
+        }
+    }
+
+    private void countColdRead(Id key) {
+        AtomicInteger reads = coldReads.get(key);
+        if (reads == null && coldReads.size() < maxColdReadEntries) reads = coldReads.computeIfAbsent(key, k->new AtomicInteger());
+        if (reads != null) reads.incrementAndGet();
+    }
+
+    /** Apply an operation to the tier holding a file.
+     *
+     * A file may be moved between checking the index and reading it, but is copied before it
+     * is removed from its original tier; so if it is not found in the expected tier, we try the
+     * other one, and if it is then not found in the bulk tier we check the fast tier again.
+     * Until the index is built, a file missing from it may still be on the fast tier.
+     */
+    private <T> T withTier(Id key, TierOperation<T> operation) throws IOException {
+        ensureOpen();
+        if (index.touch(key, System.currentTimeMillis())) {
+            try {
+                return operation.apply(fast);
+            } catch (NotFound e) {
+                // demoted since we checked the index
+            }
+        } else if (!indexed) {
+            try {
+                T result = operation.apply(fast);
+                index.putIfAbsent(key, System.currentTimeMillis());
+                return result;
+            } catch (NotFound e) {
+                // on the bulk tier
+            }
+        }
+        try {
+            T result = operation.apply(bulk);
+            if (promotionThreshold > 0) countColdRead(key);
+            return result;
+        } catch (NotFound e) {
+            return operation.apply(fast);
+        }
+    }
+
+    @Override
+    public Id parseKey(String key) {
+        return fast.parseKey(key);
+    }
+
+    @Override
+    public Id generateKey() {
+        return fast.generateKey();
+    }
+
+    @Override
+    public InputStream get(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            return LOG.exit(withTier(key, tier->tier.get(key)));
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    @Override
+    public InputStream get(Id key, long offset, long length) throws NotFound {
+        LOG.entry(key, offset, length);
+        try {
+            return LOG.exit(withTier(key, tier->tier.get(key, offset, length)));
+        } catch (NotFound e) {
+            throw LOG.throwing(e);
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+    }
+
+    /** Get the length of a file without counting it as a read. */
+    @Override
+    public long size(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        if (index.contains(key)) {
+            try {
+                return LOG.exit(fast.size(key));
+            } catch (NotFound e) {
+                // demoted since we checked the index
+            }
+        }
+        try {
+            return LOG.exit(bulk.size(key));
+        } catch (NotFound e) {
+            return LOG.exit(fast.size(key));
+        }
+    }
+
+    @Override
+    public long transferTo(Id key, WritableByteChannel target) throws IOException {
+        LOG.entry(key, target);
+        return LOG.exit(withTier(key, tier->tier.transferTo(key, target)));
+    }
+
+    @Override
+    public void put(Id key, Document document, StreamInfo iss) {
+        LOG.entry(key, document, "<stream>");
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        fast.put(key, document, iss);
+        index.put(key, System.currentTimeMillis());
+        LOG.exit();
+    }
+
+    @Override
+    public Staged<Id> stage(InputStreamSupplier iss) throws IOException {
+        LOG.entry("<stream>");
+        ensureOpen();
+        return LOG.exit(indexOnCommit(fast.stage(iss)));
+    }
+
+    @Override
+    public Staged<Id> stage(Id key, InputStreamSupplier iss) throws IOException {
+        LOG.entry(key, "<stream>");
+        ensureOpen();
+        return LOG.exit(indexOnCommit(fast.stage(key, iss)));
+    }
+
+    private Staged<Id> indexOnCommit(Staged<Id> staged) {
+        return new Staged<Id>() {
+            @Override
+            public long getLength() { return staged.getLength(); }
+            @Override
+            public byte[] getDigest() { return staged.getDigest(); }
+            @Override
+            public InputStream open() throws IOException { return staged.open(); }
+            @Override
+            public void commit(Id key, Document document) throws IOException {
+                staged.commit(key, document);
+                index.put(key, System.currentTimeMillis());
+            }
+            @Override
+            public void close() throws IOException { staged.close(); }
+        };
+    }
+
+    @Override
+    public void link(Document document, Id from, Id to) throws NotFound {
+        LOG.entry(document, from, to);
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        synchronized(lockFor(from)) {
+            if (index.contains(from) || !indexed) {
+                try {
+                    fast.link(document, from, to);
+                    index.put(to, System.currentTimeMillis());
+                    LOG.exit();
+                    return;
+                } catch (NotFound e) {
+                    if (indexed) throw LOG.throwing(e);
+                }
+            }
+            bulk.link(document, from, to);
+        }
+        LOG.exit();
+    }
+
+    @Override
+    public void remove(Id key) throws NotFound {
+        LOG.entry(key);
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        synchronized(lockFor(key)) {
+            coldReads.remove(key);
+            boolean onFast = index.remove(key);
+            if (onFast || !indexed) {
+                try {
+                    fast.remove(key);
+                    onFast = true;
+                } catch (NotFound e) {
+                    if (onFast) throw LOG.throwing(e);
+                }
+                // a copy may be left on the bulk tier by an interrupted move
+                try {
+                    bulk.remove(key);
+                } catch (NotFound e) {
+                    if (!onFast) throw LOG.throwing(e);
+                }
+            } else {
+                bulk.remove(key);
+            }
+        }
+        LOG.exit();
+    }
+
+    /** Copy a file from one tier to another, replacing any copy left by an interrupted move. */
+    private static void copy(Id key, Filestore<Id> from, Filestore<Id> to) throws IOException {
+        try {
+            to.remove(key);
+        } catch (NotFound e) {
+            // expected
+        }
+        try (Staged<Id> staged = to.stage(()->from.get(key))) {
+            staged.commit(key, null);
+        }
+    }
+
+    private boolean demote(Id key, long cutoff) throws IOException {
+        synchronized(lockFor(key)) {
+            if (!index.mark(key, cutoff)) return false;
+            try {
+                copy(key, fast, bulk);
+            } catch (NotFound e) {
+                // removed while the index was being built
+                index.remove(key);
+                return false;
+            }
+            // a read during the copy clears the mark, so the file stays where it is
+            if (!index.removeMarked(key)) {
+                bulk.remove(key);
+                return false;
+            }
+            fast.remove(key);
+            return true;
+        }
+    }
+
+    private boolean promote(Id key) throws IOException {
+        synchronized(lockFor(key)) {
+            if (index.contains(key)) return false;
+            try {
+                copy(key, bulk, fast);
+            } catch (NotFound e) {
+                // removed since it was read
+                return false;
+            }
+            index.put(key, System.currentTimeMillis());
+            bulk.remove(key);
+            return true;
+        }
+    }
+
+    /** Move unread files to the bulk tier, and frequently read files back to the fast tier.
+     *
+     * @return The number of files moved
+     */
+    public synchronized int move() {
+        LOG.entry();
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw LOG.throwing(new UncheckedIOException(e));
+        }
+        if (!indexed) {
+            LOG.debug("Fast tier index not yet built");
+            return LOG.exit(0);
+        }
+        int moved = 0;
+        long cutoff = System.currentTimeMillis() - demotionAge * 1000;
+        for (Id key : index.accessedBefore(cutoff)) {
+            try {
+                if (demote(key, cutoff)) moved++;
+            } catch (IOException e) {
+                LOG.warn("Could not move {} to bulk tier: {}", key, e.getMessage());
+            }
+        }
+        for (Id key : new ArrayList<>(coldReads.keySet())) {
+            AtomicInteger reads = coldReads.remove(key);
+            if (reads == null || reads.get() < promotionThreshold) continue;
+            try {
+                if (promote(key)) moved++;
+            } catch (IOException e) {
+                LOG.warn("Could not move {} to fast tier: {}", key, e.getMessage());
+            }
+        }
+        return LOG.exit(moved);
+    }
+
+    /** Get the number of files on the fast tier.
+     *
+     * @return number of files, which may be too low until the index is built
+     */
+    public int getFastEntries() {
+        return index.size();
+    }
+
+    /** Check whether the index of files on the fast tier has been built.
+     *
+     * @return true once every file on the fast tier has been indexed
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /** Stop background moves and discard the index. */
+    @Override
+    public synchronized void close() throws IOException {
+        LOG.entry();
+        if (mover != null) mover.shutdown();
+        mover = null;
+        if (indexer != null) {
+            indexer.interrupt();
+            try {
+                indexer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        indexer = null;
+        indexed = false;
+        index.clear();
+        coldReads.clear();
+        opened = false;
+        LOG.exit();
+    }
+}
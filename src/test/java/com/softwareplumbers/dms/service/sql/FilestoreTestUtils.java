@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Helpers shared by the filestore tests.
+ *
+ * @author jonathan
+ */
+public class FilestoreTestUtils {
+
+    private FilestoreTestUtils() { }
+
+    /** Get stream information for a string, which may be read more than once. */
+    public static StreamInfo info(String data) throws IOException {
+        return StreamInfo.of(InputStreamSupplier.markPersistent(()->new ByteArrayInputStream(data.getBytes())));
+    }
+
+    /** Read and close a stream. */
+    public static byte[] readAll(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) >= 0) out.write(buffer, 0, count);
+            return out.toByteArray();
+        }
+    }
+}
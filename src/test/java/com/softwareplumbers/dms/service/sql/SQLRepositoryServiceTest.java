@@ -2,6 +2,7 @@ package com.softwareplumbers.dms.service.sql;
 
 import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
 import com.softwareplumbers.common.sql.FluentStatement;
+import com.softwareplumbers.dms.Constants;
 import com.softwareplumbers.dms.DocumentLink;
 import com.softwareplumbers.dms.Exceptions;
 import com.softwareplumbers.dms.Options;
@@ -16,13 +17,19 @@ import com.softwareplumbers.dms.RepositoryService;
 import com.softwareplumbers.dms.common.impl.StreamInfo;
 import com.softwareplumbers.dms.common.test.TestModel;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.Random;
+import java.util.stream.Stream;
 import javax.json.JsonValue;
 import org.junit.After;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -105,5 +112,49 @@ public class SQLRepositoryServiceTest extends BaseRepositoryServiceTest {
         
         assertArrayEquals(streamInfo.digest, link.getDigest());
     }
+    
+    @Test
+    public void testSmallContentStoredInline() throws IOException, Exceptions.InvalidObjectName, Exceptions.InvalidWorkspace, Exceptions.InvalidWorkspaceState, Exceptions.InvalidReference {
+        InputStreamSupplier data = InputStreamSupplier.markPersistent(()->new ByteArrayInputStream("test123".getBytes()));
+        factory.setInlineContentSize(64);
+        try {
+            RepositoryPath path = RepositoryPath.ROOT.add(UUID.randomUUID().toString(), "hello.txt");
+            DocumentLink link = service().createDocumentLink(path, "text/plain", data, JsonValue.EMPTY_JSON_OBJECT, Options.CREATE_MISSING_PARENT);
+            try {
+                filestore.get(filestore.parseKey(link.getReference().version)).close();
+                fail("Expected content to be stored in database");
+            } catch (Filestore.NotFound e) {
+                // expected
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            service().writeData(path, out);
+            assertArrayEquals("test123".getBytes(), out.toByteArray());
+            DocumentLink updated = service().updateDocumentLink(path, Constants.NO_TYPE, null, JsonValue.EMPTY_JSON_OBJECT);
+            factory.setInlineContentSize(0);
+            try (InputStream is = service().getData(updated.getReference(), RepositoryPath.ROOT)) {
+                byte[] buffer = new byte[16];
+                assertEquals(7, is.read(buffer));
+            }
+        } finally {
+            factory.setInlineContentSize(0);
+        }
+    }
+    
+    @Test
+    public void testFailedUploadLeavesNoStagedContent() throws IOException, Exceptions.InvalidObjectName, Exceptions.InvalidWorkspaceState {
+        InputStreamSupplier data = InputStreamSupplier.markPersistent(()->new ByteArrayInputStream("test123".getBytes()));
+        try {
+            service().createDocumentLink(RepositoryPath.ROOT.add(UUID.randomUUID().toString(), "hello.txt"), "text/plain", data, JsonValue.EMPTY_JSON_OBJECT);
+            fail("Expected InvalidWorkspace");
+        } catch (Exceptions.InvalidWorkspace e) {
+            // expected
+        }
+        Path staging = ((LocalFilesystem)filestore).getStagingPath();
+        if (Files.exists(staging)) {
+            try (Stream<Path> files = Files.list(staging)) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
 
 }
@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestAccessTimeIndex {
+
+    @Test
+    public void testPutAndRemove() {
+        AccessTimeIndex index = new AccessTimeIndex(4);
+        List<Id> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Id id = new Id();
+            index.put(id, System.currentTimeMillis());
+            ids.add(id);
+        }
+        assertEquals(10000, index.size());
+        for (Id id : ids) assertTrue(index.contains(id));
+        for (int i = 0; i < 1000; i++) assertFalse(index.contains(new Id()));
+        for (int i = 0; i < 10000; i += 2) assertTrue(index.remove(ids.get(i)));
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 10000; i++) assertEquals(i % 2 == 1, index.contains(ids.get(i)));
+        assertFalse(index.remove(ids.get(0)));
+        index.clear();
+        assertEquals(0, index.size());
+        assertFalse(index.contains(ids.get(1)));
+    }
+
+    @Test
+    public void testAccessedBefore() {
+        AccessTimeIndex index = new AccessTimeIndex();
+        long now = System.currentTimeMillis();
+        Id old = new Id();
+        Id recent = new Id();
+        index.put(old, now - 3600000);
+        index.put(recent, now);
+        index.putIfAbsent(old, now);
+        assertEquals(new HashSet<>(Arrays.asList(old)), new HashSet<>(index.accessedBefore(now - 60000)));
+        index.touch(old, now);
+        assertTrue(index.accessedBefore(now - 60000).isEmpty());
+        assertFalse(index.touch(new Id(), now));
+    }
+
+    @Test
+    public void testMark() {
+        AccessTimeIndex index = new AccessTimeIndex();
+        long now = System.currentTimeMillis();
+        Id id = new Id();
+        index.put(id, now - 3600000);
+        assertFalse(index.mark(id, now - 7200000));
+        assertTrue(index.mark(id, now));
+        // an access clears the mark
+        index.touch(id, now - 3600000);
+        assertFalse(index.removeMarked(id));
+        assertTrue(index.contains(id));
+        assertTrue(index.mark(id, now));
+        assertTrue(index.removeMarked(id));
+        assertFalse(index.contains(id));
+    }
+}
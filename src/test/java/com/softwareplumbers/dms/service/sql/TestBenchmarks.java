@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.abstractpattern.Pattern;
+import com.softwareplumbers.common.sql.AbstractDatabase.CreateOption;
+import com.softwareplumbers.common.sql.DatabaseConfigFactory;
+import com.softwareplumbers.dms.Exceptions.InvalidObjectName;
+import com.softwareplumbers.dms.Exceptions.InvalidWorkspace;
+import com.softwareplumbers.dms.RepositoryPath;
+import com.softwareplumbers.dms.Workspace;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.DataType;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.EntityType;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.Operation;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.PathResolution;
+import com.softwareplumbers.dms.service.sql.DocumentDatabase.Template;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import javax.json.JsonValue;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/** Rough timings for database operations on larger trees.
+ *
+ * Skipped unless the build is run with -Dbenchmark=true. Tree shape can be adjusted
+ * with -Dbenchmark.width and -Dbenchmark.depth.
+ *
+ * @author jonathan
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LocalConfig.class })
+public class TestBenchmarks {
+
+    private static final int WIDTH = Integer.getInteger("benchmark.width", 8);
+    private static final int DEPTH = Integer.getInteger("benchmark.depth", 4);
+    private static final int SAMPLES = Integer.getInteger("benchmark.samples", 200);
+
+    @Autowired
+    DocumentDatabase factory;
+    
+    @Autowired
+    DatabaseConfigFactory<EntityType, DataType, Operation, Template> config;
+    
+    /** Counts the statements executed through a data source and the connections it provides. */
+    private static class StatementCounter {
+        
+        private final AtomicInteger count = new AtomicInteger();
+        
+        private Object wrap(Class<?> type, Object target) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+                if (method.getName().startsWith("execute")) count.incrementAndGet();
+                try {
+                    Object result = method.invoke(target, args);
+                    Class<?> returned = method.getReturnType();
+                    boolean wrapped = returned == Connection.class || Statement.class.isAssignableFrom(returned);
+                    return result != null && wrapped ? wrap(returned, result) : result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+        }
+        
+        public DataSource wrap(DataSource source) {
+            return (DataSource)wrap(DataSource.class, source);
+        }
+        
+        public int reset() {
+            return count.getAndSet(0);
+        }
+    }
+
+    @Before
+    public void createSchema() throws SQLException {
+        Assume.assumeTrue("benchmarks run only with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        try (Connection con = factory.getDataSource().getConnection()) {
+            factory.getSchema().getDropScript().runScript(con);
+            factory.getSchema().getCreateScript().runScript(con);
+            factory.getSchema().getUpdateScript().runScript(con);
+        }
+    }
+
+    /** Create a tree of folders WIDTH wide and DEPTH deep.
+     *
+     * @return ids of the folders at the lowest level of the tree
+     */
+    private List<Id> createTree(DatabaseInterface api, Id root) throws SQLException, InvalidWorkspace {
+        List<Id> level = Collections.singletonList(root);
+        for (int depth = 0; depth < DEPTH; depth++) {
+            List<Id> next = new ArrayList<>();
+            for (Id parent : level) {
+                for (int i = 0; i < WIDTH; i++) {
+                    next.add(api.createFolder(parent, Pattern.of("folder" + i), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID));
+                }
+            }
+            api.commit();
+            level = next;
+        }
+        return level;
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.println(String.format("%s: %d operations in %d ms (%.3f ms/op)", name, count, nanos / 1000000, (double)nanos / count / 1000000));
+    }
+
+    @Test
+    public void benchmarkPathResolution() throws SQLException, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            List<Id> leaves = createTree(api, Id.ROOT_ID);
+            Random random = new Random(0);
+            List<Id> sample = new ArrayList<>();
+            for (int i = 0; i < SAMPLES; i++) sample.add(leaves.get(random.nextInt(leaves.size())));
+            for (PathResolution resolution : PathResolution.values()) {
+                // warm up
+                for (Id id : sample.subList(0, Math.min(10, sample.size()))) api.getPathTo(id, resolution);
+                long start = System.nanoTime();
+                for (Id id : sample) {
+                    assertTrue(api.getPathTo(id, resolution).isPresent());
+                }
+                report("getPathTo " + resolution + " (" + leaves.size() + " leaves, depth " + DEPTH + ")", sample.size(), System.nanoTime() - start);
+            }
+        }
+    }
+    
+    @Test
+    public void benchmarkCopyFolder() throws SQLException, InvalidWorkspace, InvalidObjectName {
+        StatementCounter counter = new StatementCounter();
+        DocumentDatabase counted = new DocumentDatabase(counter.wrap(factory.getDataSource()), config, CreateOption.NONE);
+        try (DatabaseInterface api = counted.getInterface()) {
+            Id source = api.createFolder(Id.ROOT_ID, Pattern.of("source"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            createTree(api, source);
+            // copy subtrees of increasing size, from a leaf folder up to the whole tree
+            RepositoryPath path = RepositoryPath.valueOf("source");
+            for (int depth = 0; depth < DEPTH; depth++) path = path.add("folder0");
+            for (int depth = 0; depth <= DEPTH; depth++) {
+                int nodes = 0;
+                for (int level = 1, width = 1; level <= depth; level++) nodes += (width *= WIDTH);
+                counter.reset();
+                long start = System.nanoTime();
+                api.copyFolder(path, RepositoryPath.valueOf("copy" + depth), false, DatabaseInterface.GET_ID);
+                api.commit();
+                long elapsed = System.nanoTime() - start;
+                report("copyFolder (" + nodes + " descendants, depth " + depth + ", " + counter.reset() + " statements)", 1, elapsed);
+                path = path.parent;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestCachingFilestore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LocalFilesystem local;
+    CachingFilestore<Id> filestore;
+
+    @Before
+    public void createFilestore() throws IOException {
+        local = new LocalFilesystem(folder.newFolder("documents").toPath());
+        filestore = new CachingFilestore<>(local);
+        filestore.setCapacity(32);
+        filestore.setMaxEntrySize(16);
+    }
+
+    @Test
+    public void testCachedAfterFirstRead() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        assertEquals(0, filestore.getHits());
+        // served from cache even though the underlying file has gone
+        Files.delete(local.toPath(key));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        assertArrayEquals("st1".getBytes(), readAll(filestore.get(key, 2, 3)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filestore.transferTo(key, Channels.newChannel(out));
+        assertArrayEquals("test123".getBytes(), out.toByteArray());
+        assertEquals(3, filestore.getHits());
+        assertEquals(1, filestore.getMisses());
+        assertEquals(17, filestore.getBytesServed());
+    }
+
+    @Test
+    public void testLargeFilesNotCached() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("01234567890123456789"));
+        assertArrayEquals("01234567890123456789".getBytes(), readAll(filestore.get(key)));
+        assertEquals(0, filestore.getEntries());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        Id[] keys = new Id[] { filestore.generateKey(), filestore.generateKey(), filestore.generateKey() };
+        for (Id key : keys) {
+            filestore.put(key, null, info("0123456789"));
+            readAll(filestore.get(key));
+        }
+        assertEquals(3, filestore.getEntries());
+        readAll(filestore.get(keys[0]));
+        Id extra = filestore.generateKey();
+        filestore.put(extra, null, info("0123456789"));
+        readAll(filestore.get(extra));
+        assertEquals(3, filestore.getEntries());
+        assertEquals(30, filestore.getSize());
+        long misses = filestore.getMisses();
+        readAll(filestore.get(keys[0]));
+        assertEquals(misses, filestore.getMisses());
+        readAll(filestore.get(keys[1]));
+        assertEquals(misses + 1, filestore.getMisses());
+    }
+
+    @Test
+    public void testRemoveEvicts() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        readAll(filestore.get(key));
+        filestore.remove(key);
+        assertEquals(0, filestore.getEntries());
+        try {
+            filestore.get(key);
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+    }
+}
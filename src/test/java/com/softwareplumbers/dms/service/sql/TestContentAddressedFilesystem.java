@@ -0,0 +1,201 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.dms.Document;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestContentAddressedFilesystem {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    ContentAddressedFilesystem filestore;
+    
+    @Before
+    public void createFilestore() throws IOException {
+        filestore = new ContentAddressedFilesystem(folder.newFolder("documents").toPath());
+    }
+    
+    private byte[] read(Id key) throws IOException {
+        return readAll(filestore.get(key));
+    }
+    
+    @Test
+    public void testDuplicateContentStoredOnce() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        Id other = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        filestore.put(second, null, info("test123"));
+        filestore.put(other, null, info("test456"));
+        assertTrue(Files.isSameFile(filestore.toPath(first), filestore.toPath(second)));
+        assertFalse(Files.isSameFile(filestore.toPath(first), filestore.toPath(other)));
+        assertArrayEquals("test123".getBytes(), read(second));
+        assertArrayEquals("test456".getBytes(), read(other));
+    }
+    
+    @Test
+    public void testGarbageCollection() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        Id linked = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        filestore.put(second, null, info("test456"));
+        filestore.link(null, first, linked);
+        assertEquals(0, filestore.collectGarbage());
+        filestore.remove(first);
+        filestore.remove(second);
+        assertEquals(1, filestore.collectGarbage());
+        assertArrayEquals("test123".getBytes(), read(linked));
+        filestore.remove(linked);
+        assertEquals(1, filestore.collectGarbage());
+        // content is stored again after being collected
+        filestore.put(first, null, info("test123"));
+        assertArrayEquals("test123".getBytes(), read(first));
+    }
+    
+    @Test
+    public void testLinkedOrphanWithinGracePeriodKept() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        try (Stream<Path> blobs = Files.walk(filestore.getBasePath().resolve("blobs"))) {
+            Path blob = blobs.filter(Files::isRegularFile).findFirst().get();
+            Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() - 3600000));
+        }
+        // linked to the existing blob, so it shares the blob's modification time
+        filestore.put(second, null, info("test123"));
+        assertEquals(0, filestore.collectOrphans(first::equals, System.currentTimeMillis() - 60000, 2));
+        assertArrayEquals("test123".getBytes(), read(second));
+    }
+
+    @Test
+    public void testLinkFailureNotRetried() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        Path blob;
+        try (Stream<Path> blobs = Files.walk(filestore.getBasePath().resolve("blobs"))) {
+            blob = blobs.filter(Files::isRegularFile).findFirst().get();
+        }
+        filestore.remove(first);
+        Files.delete(blob);
+        // a directory can never be hard linked, so every attempt fails the same way
+        Files.createDirectory(blob);
+        try {
+            filestore.put(second, null, info("test123"));
+            fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        try (Stream<Path> blobs = Files.walk(filestore.getBasePath().resolve("blobs"))) {
+            assertEquals(0, blobs.filter(Files::isRegularFile).count());
+        }
+    }
+    
+    @Test
+    public void testStagedContentStoredOnce() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        try (Filestore.Staged<Id> staged = filestore.stage(info("test123").supplier)) {
+            assertEquals(7, staged.getLength());
+            assertArrayEquals(info("test123").digest, staged.getDigest());
+            staged.commit(second, null);
+        }
+        assertTrue(Files.isSameFile(filestore.toPath(first), filestore.toPath(second)));
+        assertArrayEquals("test123".getBytes(), read(second));
+        filestore.remove(first);
+        assertEquals(0, filestore.collectGarbage());
+        filestore.remove(second);
+        assertEquals(1, filestore.collectGarbage());
+    }
+    
+    @Test
+    public void testStagedContentDiscardedOnClose() throws IOException {
+        try (Filestore.Staged<Id> staged = filestore.stage(info("test123").supplier)) {
+            assertEquals(7, staged.getLength());
+        }
+        try (Stream<Path> staging = Files.list(filestore.getStagingPath())) {
+            assertEquals(0, staging.count());
+        }
+    }
+    
+    @Test
+    public void testTransferTo() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filestore.transferTo(key, Channels.newChannel(out));
+        assertArrayEquals("test123".getBytes(), out.toByteArray());
+    }
+    
+    @Test(expected = Filestore.NotFound.class)
+    public void testTransferToNotFound() throws IOException {
+        filestore.transferTo(filestore.generateKey(), Channels.newChannel(new ByteArrayOutputStream()));
+    }
+    
+    @Test
+    public void testGetRange() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        assertArrayEquals("st1".getBytes(), readAll(filestore.get(key, 2, 3)));
+        assertArrayEquals("123".getBytes(), readAll(filestore.get(key, 4, 100)));
+        assertArrayEquals(new byte[0], readAll(filestore.get(key, 10, 5)));
+    }
+    
+    @Test
+    public void testDefaultGetRange() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        Filestore<Id> wrapped = new Filestore<Id>() {
+            @Override public Id parseKey(String key) { return filestore.parseKey(key); }
+            @Override public Id generateKey() { return filestore.generateKey(); }
+            @Override public InputStream get(Id key) throws NotFound { return filestore.get(key); }
+            @Override public void put(Id key, Document document, StreamInfo info) { filestore.put(key, document, info); }
+            @Override public void link(Document document, Id from, Id to) throws NotFound { filestore.link(document, from, to); }
+            @Override public void remove(Id key) throws NotFound { filestore.remove(key); }
+        };
+        assertArrayEquals("st1".getBytes(), readAll(wrapped.get(key, 2, 3)));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetRangeNegativeOffset() throws IOException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        filestore.get(key, -1, 3);
+    }
+    
+    @Test(expected = Filestore.NotFound.class)
+    public void testGetRangeNotFound() throws IOException {
+        filestore.get(filestore.generateKey(), 0, 10);
+    }
+}
@@ -6,17 +6,25 @@
 package com.softwareplumbers.dms.service.sql;
 
 import com.softwareplumbers.common.abstractpattern.Pattern;
+import com.softwareplumbers.common.abstractquery.Query;
+import com.softwareplumbers.common.abstractquery.Range;
 import com.softwareplumbers.common.abstractquery.visitor.Visitors.ParameterizedSQL;
 import com.softwareplumbers.common.sql.Schema;
 import com.softwareplumbers.dms.Document;
 import com.softwareplumbers.dms.DocumentLink;
 import com.softwareplumbers.dms.Exceptions.InvalidObjectName;
 import com.softwareplumbers.dms.Exceptions.InvalidWorkspace;
+import com.softwareplumbers.dms.Exceptions.InvalidWorkspaceState;
+import com.softwareplumbers.dms.RepositoryObject;
 import com.softwareplumbers.dms.RepositoryPath;
 import com.softwareplumbers.dms.Workspace;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.stream.Collectors;
@@ -25,10 +33,13 @@ import javax.json.Json;
 import javax.json.JsonValue;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -320,6 +331,104 @@ public class TestDatabaseInterface {
         }
     }
     
+    @Test
+    public void testInlineContent() throws SQLException {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id id = new Id();
+            Id version = new Id();
+            byte[] content = "test123".getBytes();
+            api.createDocument(id, version, "type", content.length, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            assertFalse(api.getContent(version).isPresent());
+            api.updateContent(version, content);
+            api.commit();
+            assertArrayEquals(content, api.getContent(version).get());
+        }
+    }
+    
+    @Test
+    public void testGetVersionIds() throws SQLException {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.commit();
+            SortedIdSet versions = api.getVersionIds();
+            assertTrue(versions.contains(version));
+            assertFalse(versions.contains(id));
+        }
+    }
+    
+    @Test
+    public void testWalkSubtree() throws SQLException, InvalidWorkspace, InvalidObjectName, InvalidWorkspaceState {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id other_id = api.createFolder(parent_id, Pattern.of("child-2"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.createDocumentLink(parent_id, Pattern.of("doc1"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(child_id, Pattern.of("doc2"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(other_id, Pattern.of("doc3"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            try (Stream<SubtreeNode> nodes = api.walkSubtree(RepositoryPath.valueOf("parent"), false, false)) {
+                assertThat(nodes.map(node->node.path.toString()).collect(Collectors.toList()), 
+                    contains("parent/child", "parent/child/doc2", "parent/child-2", "parent/child-2/doc3", "parent/doc1"));
+            }
+            try (Stream<SubtreeNode> nodes = api.walkSubtree(RepositoryPath.valueOf("parent/child"), false, false)) {
+                SubtreeNode node = nodes.findFirst().get();
+                assertEquals(RepositoryObject.Type.DOCUMENT_LINK, node.info.type);
+                assertEquals(child_id, node.info.parent_id);
+                assertEquals(version.toString(), node.document.getReference().version);
+            }
+            api.deleteObject(RepositoryPath.valueOf("parent/child-2"));
+            api.commit();
+            try (Stream<SubtreeNode> nodes = api.walkSubtree(RepositoryPath.valueOf("parent"), false, false)) {
+                assertEquals(3, nodes.count());
+            }
+            try (Stream<SubtreeNode> nodes = api.walkSubtree(RepositoryPath.valueOf("parent"), true, false)) {
+                assertEquals(5, nodes.count());
+            }
+            try (Stream<SubtreeNode> nodes = api.walkSubtree(RepositoryPath.valueOf("missing"), false, false)) {
+                assertEquals(0, nodes.count());
+            }
+        }
+    }
+    
+    @Test
+    public void testGetLatestDocuments() throws SQLException, InterruptedException {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id id = new Id();
+            Id first = new Id();
+            Id second = new Id();
+            Id third = new Id();
+            Id other = new Id();
+            api.createDocument(id, first, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.createDocument(new Id(), other, "other", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.commit();
+            // versions need distinct creation times
+            Thread.sleep(10);
+            api.createVersion(id, second, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.commit();
+            Thread.sleep(10);
+            api.createVersion(id, third, "other", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.commit();
+            Query byType = Query.from("mediaType", Range.equals(Json.createValue("type")));
+            try (Stream<Document> docs = api.getLatestDocuments(byType, DatabaseInterface.GET_DOCUMENT)) {
+                assertThat(docs.map(doc->doc.getReference().version).collect(Collectors.toList()), contains(second.toString()));
+            }
+            try (Stream<Document> docs = api.getLatestDocuments(Query.UNBOUNDED, DatabaseInterface.GET_DOCUMENT)) {
+                assertThat(docs.map(doc->doc.getReference().version).collect(Collectors.toList()),
+                    containsInAnyOrder(third.toString(), other.toString()));
+            }
+            try (Stream<Document> docs = api.getDocumentsByRecency(byType, DatabaseInterface.GET_DOCUMENT)) {
+                assertThat(docs.map(doc->doc.getReference().version).collect(Collectors.toList()), contains(second.toString(), first.toString()));
+            }
+            assertTrue(api.isDatabaseDocumentQuery(byType));
+            assertFalse(api.isDatabaseDocumentQuery(Query.from("metadata", Query.from("x", Range.equals(Json.createValue("y"))))));
+        }
+    }
+    
     @Test
     public void testCreateAndGetFolder() throws SQLException, InvalidWorkspace, IOException {
         try (DatabaseInterface api = factory.getInterface()) {
@@ -440,4 +549,329 @@ public class TestDatabaseInterface {
             assertEquals(JsonValue.EMPTY_JSON_OBJECT, result.get().getMetadata());
         }
     }    
-}
\ No newline at end of file
+
+    @Test
+    public void testPathResolutionStrategiesAgree() throws SQLException, IOException, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            Id link_id = api.createDocumentLink(child_id, Pattern.of("grandchild"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            for (DocumentDatabase.PathResolution resolution : DocumentDatabase.PathResolution.values()) {
+                assertEquals(Optional.of(RepositoryPath.ROOT), api.getPathTo(Id.ROOT_ID, resolution));
+                assertEquals(Optional.of(RepositoryPath.valueOf("parent")), api.getPathTo(parent_id, resolution));
+                assertEquals(Optional.of(RepositoryPath.valueOf("parent/child")), api.getPathTo(child_id, resolution));
+                assertEquals(Optional.of(RepositoryPath.valueOf("parent/child/grandchild")), api.getPathTo(link_id, resolution));
+                assertEquals(Optional.empty(), api.getPathTo(new Id(), resolution));
+            }
+        }
+    }
+
+    @Test
+    public void testPathCache() throws SQLException, IOException, InvalidWorkspace, InvalidObjectName, InvalidWorkspaceState {
+        PathCache cache = factory.getPathCache();
+        cache.clear();
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id other_id = api.createFolder(Id.ROOT_ID, Pattern.of("other"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.commit();
+            long hits = cache.getHits();
+            assertEquals(Optional.of(RepositoryPath.valueOf("parent/child")), api.getPathTo(child_id));
+            assertEquals(Optional.of(RepositoryPath.valueOf("other")), api.getPathTo(other_id));
+            assertEquals(hits, cache.getHits());
+            assertEquals(Optional.of(RepositoryPath.valueOf("parent/child")), api.getPathTo(child_id));
+            assertEquals(hits + 1, cache.getHits());
+            assertEquals(2, cache.size());
+            api.deleteObject(RepositoryPath.valueOf("parent"));
+            api.commit();
+            assertEquals(1, cache.size());
+            assertEquals(Optional.of(RepositoryPath.valueOf("other")), api.getPathTo(other_id));
+            assertEquals(hits + 2, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testMaterializedPaths() throws SQLException, IOException, InvalidWorkspace {
+        factory.setMaterializedPaths(true);
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            Id link_id = api.createDocumentLink(child_id, Pattern.of("doc"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            Workspace child = api.getFolder(RepositoryPath.valueOf("parent/child"), DatabaseInterface.GET_WORKSPACE).get();
+            assertEquals(child_id.toString(), child.getId());
+            assertEquals(RepositoryPath.valueOf("parent/child"), child.getName());
+            DocumentLink link = api.getDocumentLink(RepositoryPath.valueOf("parent/child/doc"), DatabaseInterface.GET_LINK).get();
+            assertEquals(RepositoryPath.valueOf("parent/child/doc"), link.getName());
+            assertEquals(id.toString(), link.getReference().id);
+            assertEquals(Optional.empty(), api.getFolder(RepositoryPath.valueOf("parent/other"), DatabaseInterface.GET_WORKSPACE));
+            // Clear paths to simulate data created before the FULL_PATH column existed
+            try (Connection con = factory.getDataSource().getConnection(); Statement stmt = con.createStatement()) {
+                stmt.executeUpdate("UPDATE NODES SET FULL_PATH = NULL");
+            }
+            int total = 0;
+            int updated;
+            while ((updated = api.backfillPaths(1)) > 0) {
+                api.commit();
+                total += updated;
+            }
+            assertEquals(3, total);
+            factory.getPathCache().clear();
+            assertEquals(Optional.of(RepositoryPath.valueOf("parent/child/doc")), api.getPathTo(link_id));
+            assertEquals(child_id, api.getFolder(RepositoryPath.valueOf("parent/child"), DatabaseInterface.GET_ID).get());
+        } finally {
+            factory.setMaterializedPaths(false);
+        }
+    }
+
+    @Test
+    public void testDescendantSearch() throws SQLException, IOException, InvalidWorkspace, InvalidObjectName, InvalidWorkspaceState {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id grandchild_id = api.createFolder(child_id, Pattern.of("grandchild"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.createDocumentLink(parent_id, Pattern.of("doc1"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(child_id, Pattern.of("doc2"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(grandchild_id, Pattern.of("doc3"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(grandchild_id, Pattern.of("other"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**/doc*"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertThat(links.map(link->link.getName().toString()).sorted().collect(Collectors.toList()), 
+                    contains("parent/child/doc2", "parent/child/grandchild/doc3", "parent/doc1"));
+            }
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/child/**"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(3, links.count());
+            }
+            try (Stream<Workspace> folders = api.getFolders(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, false, DatabaseInterface.GET_WORKSPACE)) {
+                assertThat(folders.map(folder->folder.getName().toString()).sorted().collect(Collectors.toList()), 
+                    contains("parent/child", "parent/child/grandchild"));
+            }
+            api.deleteObject(RepositoryPath.valueOf("parent/child/grandchild"));
+            api.commit();
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(2, links.count());
+            }
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, true, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(4, links.count());
+            }
+            // Rebuilding the closure table should give the same results
+            api.rebuildClosure();
+            api.commit();
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, true, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(4, links.count());
+            }
+        }
+    }
+    
+    @Test
+    public void testCopyFolderSubtree() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id grandchild_id = api.createFolder(child_id, Pattern.of("grandchild"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.createDocumentLink(child_id, Pattern.of("doc1"), id, version, DatabaseInterface.GET_ID);
+            api.createDocumentLink(grandchild_id, Pattern.of("doc2"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            Workspace copy = api.copyFolder(RepositoryPath.valueOf("parent"), RepositoryPath.valueOf("copy"), false, DatabaseInterface.GET_WORKSPACE);
+            api.commit();
+            assertEquals(RepositoryPath.valueOf("copy"), copy.getName());
+            Optional<DocumentLink> link = api.getDocumentLink(RepositoryPath.valueOf("copy/child/grandchild/doc2"), DatabaseInterface.GET_LINK);
+            assertTrue(link.isPresent());
+            assertEquals(id.toString(), link.get().getReference().id);
+            Id copied_id = api.getDocumentLink(RepositoryPath.valueOf("copy/child/grandchild/doc2"), DatabaseInterface.GET_ID).get();
+            assertEquals(Optional.of(RepositoryPath.valueOf("copy/child/grandchild/doc2")), api.getPathTo(copied_id));
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("copy/**"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertThat(links.map(each->each.getName().toString()).sorted().collect(Collectors.toList()), 
+                    contains("copy/child/doc1", "copy/child/grandchild/doc2"));
+            }
+            // source is untouched
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(2, links.count());
+            }
+        }
+    }
+    
+    @Test
+    public void testPublishFreezesSubtree() throws SQLException, IOException, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.createDocumentLink(child_id, Pattern.of("doc"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            Id published_id = api.publish(parent_id, "v1");
+            Id newVersion = new Id();
+            api.createVersion(id, newVersion, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            api.commit();
+            Optional<DocumentLink> current = api.getDocumentLink(RepositoryPath.valueOf("parent/child/doc"), DatabaseInterface.GET_LINK);
+            assertEquals(newVersion.toString(), current.get().getReference().version);
+            Optional<DocumentLink> published = api.getDocumentLink(RepositoryPath.ROOT.addId(published_id.toString()).add("child", "doc"), DatabaseInterface.GET_LINK);
+            assertTrue(published.isPresent());
+            assertEquals(version.toString(), published.get().getReference().version);
+        }
+    }
+    
+    @Test
+    public void testMoveFolder() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id child_id = api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id grandchild_id = api.createFolder(child_id, Pattern.of("grandchild"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.createFolder(Id.ROOT_ID, Pattern.of("other"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            Id link_id = api.createDocumentLink(grandchild_id, Pattern.of("doc"), id, version, DatabaseInterface.GET_ID);
+            api.commit();
+            Workspace moved = api.moveFolder(RepositoryPath.valueOf("parent/child"), RepositoryPath.valueOf("other/moved"), false, DatabaseInterface.GET_WORKSPACE);
+            api.commit();
+            assertEquals(RepositoryPath.valueOf("other/moved"), moved.getName());
+            assertEquals(child_id.toString(), moved.getId());
+            assertFalse(api.getFolder(RepositoryPath.valueOf("parent/child"), DatabaseInterface.GET_ID).isPresent());
+            assertEquals(Optional.of(link_id), api.getDocumentLink(RepositoryPath.valueOf("other/moved/grandchild/doc"), DatabaseInterface.GET_ID));
+            assertEquals(Optional.of(RepositoryPath.valueOf("other/moved/grandchild/doc")), api.getPathTo(link_id));
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("other/**"), Query.UNBOUNDED, false, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(1, links.count());
+            }
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, true, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(0, links.count());
+            }
+            DocumentLink renamed = api.moveDocumentLink(RepositoryPath.valueOf("other/moved/grandchild/doc"), RepositoryPath.valueOf("parent/renamed"), false, DatabaseInterface.GET_LINK);
+            assertEquals(RepositoryPath.valueOf("parent/renamed"), renamed.getName());
+            assertEquals(Optional.of(link_id), api.getDocumentLink(RepositoryPath.valueOf("parent/renamed"), DatabaseInterface.GET_ID));
+        }
+    }
+    
+    @Test(expected = InvalidWorkspace.class)
+    public void testMoveFolderIntoDescendant() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.moveFolder(RepositoryPath.valueOf("parent"), RepositoryPath.valueOf("parent/child/parent"), false, DatabaseInterface.GET_WORKSPACE);
+        }
+    }
+    
+    @Test(expected = InvalidWorkspace.class)
+    public void testMoveFolderOntoDeletedFolder() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace, InvalidWorkspaceState {
+        try (DatabaseInterface api = factory.getInterface()) {
+            api.createFolder(Id.ROOT_ID, Pattern.of("source"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            Id target_id = api.createFolder(Id.ROOT_ID, Pattern.of("target"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.createFolder(target_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.deleteObject(RepositoryPath.valueOf("target"));
+            api.commit();
+            api.moveFolder(RepositoryPath.valueOf("source"), RepositoryPath.valueOf("target"), false, DatabaseInterface.GET_WORKSPACE);
+        }
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testMoveFolderWithoutClosure() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.commit();
+        }
+        // as for a database upgraded without running rebuildClosure
+        try (Connection con = factory.getDataSource().getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("DELETE FROM NODE_CLOSURE");
+        }
+        try (DatabaseInterface api = factory.getInterface()) {
+            api.moveFolder(RepositoryPath.valueOf("parent"), RepositoryPath.valueOf("parent/child/parent"), false, DatabaseInterface.GET_WORKSPACE);
+        }
+    }
+    
+    @Test
+    public void testSearchDescendantsWithoutClosure() throws SQLException, IOException, InvalidObjectName, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+            api.commit();
+            assertTrue(api.isClosureComplete());
+        }
+        // as for a database upgraded without running rebuildClosure
+        try (Connection con = factory.getDataSource().getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("DELETE FROM NODE_CLOSURE WHERE ANCESTOR_ID <> DESCENDANT_ID OR DEPTH > 0");
+            stmt.execute("DELETE FROM NODE_CLOSURE WHERE DESCENDANT_ID IN (SELECT ID FROM NODES WHERE NAME = 'parent')");
+        }
+        try (DatabaseInterface api = factory.getInterface()) {
+            assertFalse(api.isClosureComplete());
+            for (String search : new String[] { "parent/**", "**" }) {
+                try (Stream<Workspace> folders = api.getFolders(RepositoryPath.valueOf(search), Query.UNBOUNDED, false, DatabaseInterface.GET_WORKSPACE)) {
+                    fail("search succeeded without closure: " + search);
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
+            api.rebuildClosure();
+            api.commit();
+            assertTrue(api.isClosureComplete());
+            try (Stream<Workspace> folders = api.getFolders(RepositoryPath.valueOf("parent/**"), Query.UNBOUNDED, false, DatabaseInterface.GET_WORKSPACE)) {
+                assertThat(folders.map(folder->folder.getName().toString()).collect(Collectors.toList()), contains("parent/child"));
+            }
+        }
+    }
+    
+    @Test
+    public void testGetOrCreateDeepFolder() throws SQLException, IOException, InvalidWorkspace {
+        for (boolean materialized : new boolean[] { false, true }) {
+            factory.setMaterializedPaths(materialized);
+            try (DatabaseInterface api = factory.getInterface()) {
+                RepositoryPath base = RepositoryPath.valueOf("parent" + materialized);
+                Id parent_id = api.createFolder(Id.ROOT_ID, Pattern.of("parent" + materialized), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+                api.createFolder(parent_id, Pattern.of("child"), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+                RepositoryPath deep = base.add("child", "a", "b", "c");
+                Id deep_id = api.getOrCreateFolder(deep, true, DatabaseInterface.GET_ID).get();
+                api.commit();
+                assertEquals(Optional.of(deep), api.getPathTo(deep_id));
+                assertEquals(Optional.of(deep_id), api.getOrCreateFolder(deep, true, DatabaseInterface.GET_ID));
+                assertEquals(Optional.of(deep_id), api.getOrCreateFolder(deep, false, DatabaseInterface.GET_ID));
+                assertEquals(Optional.empty(), api.getOrCreateFolder(base.add("child", "d"), false, DatabaseInterface.GET_ID));
+                try {
+                    api.getOrCreateFolder(base.add("x", "y"), false, DatabaseInterface.GET_ID);
+                    fail("expected InvalidWorkspace");
+                } catch (InvalidWorkspace e) {
+                    // expected
+                }
+            } finally {
+                factory.setMaterializedPaths(false);
+            }
+        }
+    }
+    
+    @Test
+    public void testFreeSearchResolvesPathsInBatches() throws SQLException, IOException, InvalidWorkspace {
+        try (DatabaseInterface api = factory.getInterface()) {
+            Id id = new Id();
+            Id version = new Id();
+            api.createDocument(id, version, "type", 0, generateDigest(), JsonValue.EMPTY_JSON_OBJECT);
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Id folder_id = api.createFolder(Id.ROOT_ID, Pattern.of("folder" + i), Workspace.State.Open, JsonValue.EMPTY_JSON_OBJECT, DatabaseInterface.GET_ID);
+                for (int j = 0; j < 60; j++) {
+                    api.createDocumentLink(folder_id, Pattern.of("doc" + j), id, version, DatabaseInterface.GET_ID);
+                    expected.add("folder" + i + "/doc" + j);
+                }
+            }
+            api.commit();
+            Collections.sort(expected);
+            Query byDocument = Query.from("reference", Query.from("id", Range.equals(Json.createValue(id.toString()))));
+            try (Stream<DocumentLink> links = api.getDocumentLinks(RepositoryPath.ROOT, byDocument, false, false, DatabaseInterface.GET_LINK)) {
+                assertEquals(expected, links.map(link->link.getName().toString()).sorted().collect(Collectors.toList()));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestLocalFilesystem {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path basePath;
+
+    @Before
+    public void createBasePath() throws IOException {
+        basePath = folder.newFolder("documents").toPath();
+    }
+
+    private static byte[] read(LocalFilesystem filestore, Id key) throws IOException {
+        return readAll(filestore.get(key));
+    }
+
+    /** Channel which accepts nothing for its first few writes. */
+    private static class StallingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int stalls;
+
+        StallingChannel(int stalls) {
+            this.stalls = stalls;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) {
+            if (stalls > 0) {
+                stalls--;
+                return 0;
+            }
+            int count = buffer.remaining();
+            while (buffer.hasRemaining()) out.write(buffer.get());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() { }
+    }
+
+    @Test
+    public void testTransferToStalledTarget() throws IOException {
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        StallingChannel target = new StallingChannel(1);
+        assertEquals(7, filestore.transferTo(key, target));
+        assertArrayEquals("test123".getBytes(), target.out.toByteArray());
+    }
+
+    @Test(expected = IOException.class, timeout = 10000)
+    public void testTransferToBlockedTarget() throws IOException {
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        filestore.transferTo(key, new StallingChannel(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testTransferToUnreadable() throws IOException {
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        // a directory in place of the file cannot be opened, but is not missing
+        Files.delete(filestore.toPath(key));
+        Files.createDirectory(filestore.toPath(key));
+        try {
+            filestore.transferTo(key, new StallingChannel(0));
+            fail("Expected IOException");
+        } catch (Filestore.NotFound e) {
+            fail("Expected IOException other than NotFound");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLayoutRoundTrip() {
+        Id id = new Id();
+        for (FileLayout layout : FileLayout.values()) {
+            Path path = layout.toPath(basePath, id);
+            assertEquals(layout.getDepth(), basePath.relativize(path).getNameCount());
+            assertEquals(Optional.of(id), layout.toId(basePath, path));
+        }
+        assertFalse(FileLayout.HASHED.toId(basePath, FileLayout.SEGMENTED.toPath(basePath, id)).isPresent());
+        assertFalse(FileLayout.SEGMENTED.toId(basePath, FileLayout.HASHED.toPath(basePath, id)).isPresent());
+    }
+
+    @Test
+    public void testHashedLayout() throws IOException {
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        filestore.setLayout(FileLayout.HASHED);
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        assertTrue(Files.exists(FileLayout.HASHED.toPath(basePath, key)));
+        assertArrayEquals("test123".getBytes(), read(filestore, key));
+    }
+
+    @Test
+    public void testMigrateLayout() throws IOException {
+        LocalFilesystem original = new LocalFilesystem(basePath);
+        List<Id> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Id key = original.generateKey();
+            original.put(key, null, info("test" + i));
+            keys.add(key);
+        }
+
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        filestore.setLayout(FileLayout.HASHED);
+        filestore.setPreviousLayout(FileLayout.SEGMENTED);
+        // readable before migration
+        assertArrayEquals("test0".getBytes(), read(filestore, keys.get(0)));
+        filestore.remove(keys.get(19));
+
+        assertEquals(19, filestore.migrate(4));
+        assertEquals(0, filestore.migrate(4));
+        for (int i = 0; i < 19; i++) {
+            assertFalse(Files.exists(FileLayout.SEGMENTED.toPath(basePath, keys.get(i))));
+            assertArrayEquals(("test" + i).getBytes(), read(filestore, keys.get(i)));
+        }
+    }
+
+    @Test
+    public void testCollectOrphans() throws IOException {
+        LocalFilesystem filestore = new LocalFilesystem(basePath);
+        filestore.setLayout(FileLayout.HASHED);
+        Id referenced = filestore.generateKey();
+        Id orphan = filestore.generateKey();
+        Id recent = filestore.generateKey();
+        filestore.put(referenced, null, info("test123"));
+        filestore.put(orphan, null, info("test456"));
+        long cutoff = System.currentTimeMillis() + 60000;
+        Set<Id> versions = Collections.singleton(referenced);
+
+        // shard already swept by an interrupted collection
+        Path checkpoint = basePath.resolve("orphans.checkpoint");
+        Files.write(checkpoint, Collections.singletonList(orphan.toString().substring(0, 2)));
+        assertEquals(0, filestore.collectOrphans(versions::contains, cutoff, 4));
+        assertTrue(Files.exists(filestore.toPath(orphan)));
+        assertFalse(Files.exists(checkpoint));
+
+        filestore.put(recent, null, info("test789"));
+        // nothing older than a cutoff a minute ago
+        assertEquals(0, filestore.collectOrphans(versions::contains, cutoff - 120000, 4));
+        assertTrue(Files.exists(filestore.toPath(recent)));
+        assertEquals(2, filestore.collectOrphans(versions::contains, cutoff, 4));
+        assertFalse(Files.exists(filestore.toPath(orphan)));
+        assertFalse(Files.exists(filestore.toPath(recent)));
+        assertArrayEquals("test123".getBytes(), read(filestore, referenced));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestPackedFilesystem {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path basePath;
+    PackedFilesystem filestore;
+
+    @Before
+    public void createFilestore() throws IOException {
+        basePath = folder.newFolder("documents").toPath();
+        filestore = open();
+    }
+
+    @After
+    public void closeFilestore() throws IOException {
+        filestore.close();
+    }
+
+    private PackedFilesystem open() {
+        PackedFilesystem result = new PackedFilesystem(basePath);
+        result.setMaxPackedSize(64);
+        result.setSegmentSize(1024);
+        return result;
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(basePath.resolve("segments"))) {
+            return files.filter(file->file.toString().endsWith(".dat")).count();
+        }
+    }
+
+    @Test
+    public void testSmallFilesArePacked() throws IOException {
+        Id small = filestore.generateKey();
+        Id large = filestore.generateKey();
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 10; i++) data.append("0123456789");
+        filestore.put(small, null, info("test123"));
+        filestore.put(large, null, info(data.toString()));
+        assertFalse(Files.exists(filestore.toPath(small)));
+        assertTrue(Files.exists(filestore.toPath(large)));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(small)));
+        assertArrayEquals("st1".getBytes(), readAll(filestore.get(small, 2, 3)));
+        assertArrayEquals(data.toString().getBytes(), readAll(filestore.get(large)));
+    }
+
+    @Test
+    public void testCollectPackedOrphans() throws IOException {
+        Id referenced = filestore.generateKey();
+        Id orphan = filestore.generateKey();
+        filestore.put(referenced, null, info("test123"));
+        filestore.put(orphan, null, info("test456"));
+        // segment changed within the grace period
+        assertEquals(0, filestore.collectOrphans(referenced::equals, System.currentTimeMillis() - 60000, 2));
+        assertEquals(1, filestore.collectOrphans(referenced::equals, System.currentTimeMillis() + 60000, 2));
+        filestore.close();
+        filestore = open();
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(referenced)));
+        try {
+            filestore.get(orphan);
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetRangeNegativeOffset() throws IOException {
+        Id small = filestore.generateKey();
+        filestore.put(small, null, info("test123"));
+        filestore.get(small, -1, 3);
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        Id small = filestore.generateKey();
+        Id large = filestore.generateKey();
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 10; i++) data.append("0123456789");
+        filestore.put(small, null, info("test123"));
+        filestore.put(large, null, info(data.toString()));
+        assertEquals(7, filestore.size(small));
+        assertEquals(100, filestore.size(large));
+        try {
+            filestore.size(filestore.generateKey());
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIndexRebuiltOnOpen() throws IOException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        Id linked = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        filestore.put(second, null, info("test456"));
+        filestore.link(null, first, linked);
+        filestore.remove(first);
+        filestore.close();
+        // simulate a crash part way through writing a record
+        Path segment = basePath.resolve("segments").resolve("segment-00000001.dat");
+        Files.write(segment, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        filestore = open();
+        assertArrayEquals("test456".getBytes(), readAll(filestore.get(second)));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(linked)));
+        try {
+            filestore.get(first);
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+        Id third = filestore.generateKey();
+        filestore.put(third, null, info("test789"));
+        assertArrayEquals("test789".getBytes(), readAll(filestore.get(third)));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        List<Id> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Id key = filestore.generateKey();
+            filestore.put(key, null, info("test" + i));
+            keys.add(key);
+        }
+        long segments = countSegments();
+        assertTrue(segments > 2);
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 0) filestore.remove(keys.get(i));
+        }
+        assertTrue(filestore.compact() > 0);
+        assertTrue(countSegments() < segments);
+        for (int i = 0; i < 100; i += 10) {
+            assertArrayEquals(("test" + i).getBytes(), readAll(filestore.get(keys.get(i))));
+        }
+        filestore.close();
+        filestore = open();
+        for (int i = 0; i < 100; i += 10) {
+            assertArrayEquals(("test" + i).getBytes(), readAll(filestore.get(keys.get(i))));
+        }
+        assertEquals(0, filestore.compact());
+    }
+}
@@ -10,11 +10,16 @@ import com.softwareplumbers.dms.Options;
 import com.softwareplumbers.dms.Workspace;
 import com.softwareplumbers.dms.Exceptions;
 import com.softwareplumbers.dms.RepositoryService;
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import com.softwareplumbers.dms.common.impl.StreamInfo;
 import com.softwareplumbers.dms.common.test.TestModel;
 import static com.softwareplumbers.dms.common.test.TestUtils.randomText;
 import static com.softwareplumbers.dms.common.test.TestUtils.randomUrlSafeName;
 import static com.softwareplumbers.dms.common.test.TestUtils.toStream;
 import static com.softwareplumbers.dms.common.test.TestUtils.randomQualifiedName;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -122,4 +127,142 @@ public class TestSQLRepositoryServiceMBean {
         assertThat(status.fixed, equalTo(0));
         assertThat(status.failed, equalTo(0));
     }
+
+    @Test
+    public void testIncrementalSkipsVerified() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+		String originalText = randomText(); 
+        String linkName = randomUrlSafeName();
+        String path = workspace.getName().toString();
+		DocumentLink link1 = workspace.createLink(service(), linkName, "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        DocumentLink link2 = link1.update(service(), "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        mbean.setIntegrityCheckSampleFraction(0);
+        
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        mbean.checkIntegrity(path, false, IntegrityChecker.Mode.INCREMENTAL, status);
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(2));
+        assertThat(status.skipped, equalTo(0));
+        
+        // now add a version; only the new version is checked
+        DocumentLink link3 = link2.update(service(), "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        mbean.checkIntegrity(path, false, IntegrityChecker.Mode.INCREMENTAL, status);
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(1));
+        assertThat(status.skipped, equalTo(2));
+        
+        // with a sample fraction of 1, every version is checked again
+        mbean.setIntegrityCheckSampleFraction(1);
+        status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        mbean.checkIntegrity(path, false, IntegrityChecker.Mode.INCREMENTAL, status);
+        assertThat(status.ok, equalTo(3));
+        assertThat(status.skipped, equalTo(0));
+        mbean.setIntegrityCheckSampleFraction(0.01);
+    }
+
+    @Test
+    public void testMetadataCheck() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+		String originalText = randomText(); 
+        String linkName = randomUrlSafeName();
+		DocumentLink link1 = workspace.createLink(service(), linkName, "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        DocumentLink link2 = link1.update(service(), "text/plain", ()->toStream(originalText + "more"), documentMetadataModel().generateValue());
+        
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        mbean.checkIntegrity(workspace.getName().toString(), false, IntegrityChecker.Mode.METADATA, status);
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(2));
+        assertThat(status.failed, equalTo(0));
+        assertThat(status.bytes, equalTo(0L));
+    }
+
+    @Test
+    public void testMetadataCheckMismatch() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference, IOException {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+		String originalText = randomText(); 
+        String linkName = randomUrlSafeName();
+		DocumentLink link1 = workspace.createLink(service(), linkName, "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        DocumentLink link2 = link1.update(service(), "text/plain", ()->toStream(originalText + "more"), documentMetadataModel().generateValue());
+        // replace the stored content of the second version with content of a different length
+        Object key = filestore.parseKey(Id.ofVersion(link2.getReference().getVersion()).toString());
+        filestore.remove(key);
+        filestore.put(key, null, StreamInfo.of(InputStreamSupplier.markPersistent(()->toStream(originalText))));
+        
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        mbean.checkIntegrity(workspace.getName().toString(), false, IntegrityChecker.Mode.METADATA, status);
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(1));
+        assertThat(status.failed, equalTo(1));
+        assertThat(status.bytes, equalTo(0L));
+    }
+
+    @Test
+    public void testParallelThrottledCheck() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+        for (int i = 0; i < 4; i++)
+            workspace.createLink(service(), randomUrlSafeName(), "text/plain", ()->toStream(randomText()), documentMetadataModel().generateValue());
+        IntegrityChecker checker = new IntegrityChecker(documents, filestore);
+        checker.setThreads(4);
+        checker.setMaxBytesPerSecond(64);
+
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        long started = System.currentTimeMillis();
+        checker.check(workspace.getName().toString(), false, status);
+        long elapsed = System.currentTimeMillis() - started;
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(4));
+        // one second's worth may be read before the throttle applies
+        assertThat(elapsed >= (status.bytes - 64) * 1000 / 64, equalTo(true));
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference, IOException {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+		String originalText = randomText(); 
+        String linkName = randomUrlSafeName();
+		DocumentLink link1 = workspace.createLink(service(), linkName, "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        DocumentLink link2 = link1.update(service(), "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        // checkpoint left by an interrupted check of the first version
+        Path checkpoint = Files.createTempFile("integrity", ".checkpoint");
+        Files.write(checkpoint, Id.ofVersion(link1.getReference().getVersion()).getBytes());
+        IntegrityChecker checker = new IntegrityChecker(documents, filestore);
+        checker.setCheckpoint(checkpoint);
+
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        checker.check(workspace.getName().toString(), false, status);
+        assertThat(status.errors, equalTo(0));
+        assertThat(status.ok, equalTo(1));
+        assertThat(status.skipped, equalTo(1));
+        assertThat(Files.exists(checkpoint), equalTo(false));
+    }
+
+    @Test
+    public void testCheckAfterStop() throws Exceptions.InvalidWorkspaceState, Exceptions.InvalidWorkspace, Exceptions.InvalidObjectName, Exceptions.InvalidVersionName, Exceptions.InvalidReference, InterruptedException {
+		Workspace workspace = service().createWorkspaceByName(randomQualifiedName(), Workspace.State.Open, workspaceMetadataModel().generateValue(), Options.CREATE_MISSING_PARENT);
+		String originalText = randomText(); 
+        String linkName = randomUrlSafeName();
+        String path = workspace.getName().toString();
+		DocumentLink link1 = workspace.createLink(service(), linkName, "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        DocumentLink link2 = link1.update(service(), "text/plain", ()->toStream(originalText), documentMetadataModel().generateValue());
+        
+        // a checker which has been stopped may run again
+        IntegrityChecker checker = new IntegrityChecker(documents, filestore);
+        checker.stop();
+        SQLRepositoryServiceMBean.IntegrityCheckStatus status = new SQLRepositoryServiceMBean.IntegrityCheckStatus();
+        checker.check(path, false, status);
+        assertThat(status.ok, equalTo(2));
+
+        assertThat(mbean.startIntegrityCheck(path, false), equalTo("Started"));
+        mbean.stopIntegrityCheck();
+        waitForIntegrityCheck();
+        assertThat(mbean.startIntegrityCheck(path, false), equalTo("Started"));
+        waitForIntegrityCheck();
+        assertThat(mbean.getIntegrityCheckStatus().startsWith("OK: 2, Failed: 0"), equalTo(true));
+    }
+
+    private void waitForIntegrityCheck() throws InterruptedException {
+        for (int i = 0; i < 100 && !mbean.getIntegrityCheckStatus().endsWith("Finished"); i++) Thread.sleep(100);
+        assertThat(mbean.getIntegrityCheckStatus().endsWith("Finished"), equalTo(true));
+    }
 }
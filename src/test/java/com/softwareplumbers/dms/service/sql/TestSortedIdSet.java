@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestSortedIdSet {
+
+    @Test
+    public void testContains() {
+        SortedIdSet set = new SortedIdSet(4);
+        List<Id> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Id id = new Id();
+            set.add(id);
+            ids.add(id);
+        }
+        set.add(Id.ROOT_ID);
+        set.sort();
+        assertEquals(1001, set.size());
+        for (Id id : ids) assertTrue(set.contains(id));
+        assertTrue(set.contains(Id.ROOT_ID));
+        for (int i = 0; i < 1000; i++) assertFalse(set.contains(new Id()));
+    }
+
+    @Test
+    public void testEmpty() {
+        SortedIdSet set = new SortedIdSet();
+        set.sort();
+        assertFalse(set.contains(new Id()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMustSortBeforeQuery() {
+        SortedIdSet set = new SortedIdSet();
+        set.add(new Id());
+        set.contains(new Id());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestStripedFilestore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LocalFilesystem first;
+    LocalFilesystem second;
+    LocalFilesystem third;
+
+    @Before
+    public void createVolumes() throws IOException {
+        first = new LocalFilesystem(folder.newFolder("first").toPath());
+        second = new LocalFilesystem(folder.newFolder("second").toPath());
+        third = new LocalFilesystem(folder.newFolder("third").toPath());
+    }
+
+    private static long count(LocalFilesystem volume) throws IOException {
+        try (Stream<Id> keys = volume.keys()) {
+            return keys.count();
+        }
+    }
+
+    private static List<Id> putAll(Filestore<Id> filestore, int count) throws IOException {
+        List<Id> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Id key = filestore.generateKey();
+            try (Filestore.Staged<Id> staged = filestore.stage(key, ()->new ByteArrayInputStream(key.toString().getBytes()))) {
+                staged.commit(key, null);
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static void assertReadable(Filestore<Id> filestore, List<Id> keys) throws IOException {
+        for (Id key : keys) assertArrayEquals(key.toString().getBytes(), readAll(filestore.get(key)));
+    }
+
+    @Test
+    public void testKeysSpreadAcrossVolumes() throws IOException {
+        StripedFilestore filestore = new StripedFilestore(Arrays.asList(first, second, third));
+        List<Id> keys = putAll(filestore, 60);
+        assertTrue(count(first) > 0);
+        assertTrue(count(second) > 0);
+        assertTrue(count(third) > 0);
+        assertEquals(60, count(first) + count(second) + count(third));
+        assertReadable(filestore, keys);
+        assertTrue(filestore.getVolumeStatistics().contains("Writes: " + count(first)));
+    }
+
+    @Test
+    public void testTransferToCountsBytes() throws IOException {
+        StripedFilestore filestore = new StripedFilestore(Collections.singletonList(first));
+        Id key = putAll(filestore, 1).get(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(key.toString().length(), filestore.transferTo(key, Channels.newChannel(out)));
+        assertArrayEquals(key.toString().getBytes(), out.toByteArray());
+        assertTrue(filestore.getVolumeStatistics().contains("Reads: 1, Bytes read: " + key.toString().length()));
+    }
+
+    @Test
+    public void testRebalanceOntoNewVolume() throws IOException {
+        List<Id> keys = putAll(new StripedFilestore(Arrays.asList(first, second)), 60);
+        StripedFilestore filestore = new StripedFilestore(Arrays.asList(first, second, third));
+        assertReadable(filestore, keys);
+        int moved = filestore.rebalance(2);
+        assertTrue(moved > 0);
+        assertEquals(moved, count(third));
+        assertEquals(0, filestore.rebalance(2));
+        assertReadable(filestore, keys);
+    }
+
+    @Test
+    public void testRebalanceOffRetiredVolume() throws IOException {
+        List<Id> keys = putAll(new StripedFilestore(Arrays.asList(first, second, third)), 60);
+        StripedFilestore filestore = new StripedFilestore(Arrays.asList(second, third));
+        filestore.setRetiredVolumes(Collections.singletonList(first));
+        assertReadable(filestore, keys);
+        assertEquals(count(first), filestore.rebalance(2));
+        assertEquals(0, count(first));
+        assertReadable(filestore, keys);
+    }
+
+    @Test
+    public void testLinkAndRemove() throws IOException {
+        StripedFilestore filestore = new StripedFilestore(Arrays.asList(first, second, third));
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        List<Id> links = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Id link = filestore.generateKey();
+            filestore.link(null, key, link);
+            links.add(link);
+        }
+        filestore.remove(key);
+        for (Id link : links) assertArrayEquals("test123".getBytes(), readAll(filestore.get(link)));
+        try {
+            filestore.get(key);
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.dms.service.sql;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.info;
+import static com.softwareplumbers.dms.service.sql.FilestoreTestUtils.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestTieredFilestore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LocalFilesystem fast;
+    LocalFilesystem bulk;
+    TieredFilestore filestore;
+
+    @Before
+    public void createFilestore() throws IOException {
+        fast = new LocalFilesystem(folder.newFolder("fast").toPath());
+        bulk = new LocalFilesystem(folder.newFolder("bulk").toPath());
+        filestore = open();
+    }
+
+    @After
+    public void closeFilestore() throws IOException {
+        filestore.close();
+    }
+
+    private TieredFilestore open() {
+        TieredFilestore result = new TieredFilestore(fast, bulk);
+        result.setDemotionAge(0);
+        result.setPromotionThreshold(2);
+        return result;
+    }
+
+    private static void awaitIndex(TieredFilestore filestore) throws InterruptedException {
+        for (int i = 0; i < 100 && !filestore.isIndexed(); i++) Thread.sleep(10);
+        assertTrue(filestore.isIndexed());
+    }
+
+    @Test
+    public void testNewFilesOnFastTier() throws IOException {
+        Id key = filestore.generateKey();
+        try (Filestore.Staged<Id> staged = filestore.stage(()->new ByteArrayInputStream("test123".getBytes()))) {
+            staged.commit(key, null);
+        }
+        Id linked = filestore.generateKey();
+        filestore.link(null, key, linked);
+        assertTrue(Files.exists(fast.toPath(key)));
+        assertTrue(Files.exists(fast.toPath(linked)));
+        assertEquals(2, filestore.getFastEntries());
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(linked)));
+        assertArrayEquals("st1".getBytes(), readAll(filestore.get(key, 2, 3)));
+    }
+
+    @Test
+    public void testDemoteAndPromote() throws IOException, InterruptedException {
+        Id key = filestore.generateKey();
+        filestore.put(key, null, info("test123"));
+        awaitIndex(filestore);
+        assertEquals(1, filestore.move());
+        assertFalse(Files.exists(fast.toPath(key)));
+        assertTrue(Files.exists(bulk.toPath(key)));
+        assertEquals(0, filestore.getFastEntries());
+
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        filestore.setDemotionAge(60);
+        assertEquals(1, filestore.move());
+        assertTrue(Files.exists(fast.toPath(key)));
+        assertFalse(Files.exists(bulk.toPath(key)));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        assertEquals(0, filestore.move());
+    }
+
+    @Test
+    public void testReadDuringDemotion() throws IOException, InterruptedException {
+        Id key = filestore.generateKey();
+        bulk = new LocalFilesystem(folder.newFolder("slow").toPath()) {
+            @Override
+            public Filestore.Staged<Id> stage(InputStreamSupplier iss) throws IOException {
+                // the file is read while it is being copied
+                readAll(filestore.get(key));
+                return super.stage(iss);
+            }
+        };
+        filestore.close();
+        filestore = open();
+        filestore.put(key, null, info("test123"));
+        awaitIndex(filestore);
+        assertEquals(0, filestore.move());
+        assertTrue(Files.exists(fast.toPath(key)));
+        assertFalse(Files.exists(bulk.toPath(key)));
+        assertEquals(1, filestore.getFastEntries());
+    }
+
+    @Test
+    public void testColdReadsBounded() throws IOException, InterruptedException {
+        Id first = filestore.generateKey();
+        Id second = filestore.generateKey();
+        filestore.put(first, null, info("test123"));
+        filestore.put(second, null, info("test456"));
+        awaitIndex(filestore);
+        assertEquals(2, filestore.move());
+        filestore.setMaxColdReadEntries(1);
+        filestore.setDemotionAge(60);
+        for (int i = 0; i < 2; i++) {
+            readAll(filestore.get(first));
+            readAll(filestore.get(second));
+        }
+        assertEquals(1, filestore.move());
+        assertTrue(Files.exists(fast.toPath(first)));
+        assertFalse(Files.exists(fast.toPath(second)));
+    }
+
+    @Test
+    public void testIndexRebuiltOnOpen() throws IOException, InterruptedException {
+        Id hot = filestore.generateKey();
+        Id cold = filestore.generateKey();
+        filestore.put(cold, null, info("test123"));
+        awaitIndex(filestore);
+        filestore.move();
+        filestore.put(hot, null, info("test456"));
+        filestore.close();
+
+        filestore = open();
+        assertArrayEquals("test456".getBytes(), readAll(filestore.get(hot)));
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(cold)));
+        awaitIndex(filestore);
+        assertEquals(1, filestore.getFastEntries());
+        filestore.remove(hot);
+        filestore.remove(cold);
+        try {
+            filestore.get(cold);
+            fail("Expected NotFound");
+        } catch (Filestore.NotFound e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadsBeforeIndexBuilt() throws IOException, InterruptedException {
+        Id key = filestore.generateKey();
+        fast.put(key, null, info("test123"));
+        CountDownLatch indexing = new CountDownLatch(1);
+        fast = new LocalFilesystem(fast.getBasePath()) {
+            @Override
+            public Stream<Id> keys() throws IOException {
+                try {
+                    indexing.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.keys();
+            }
+        };
+        filestore.close();
+        filestore = open();
+        assertArrayEquals("test123".getBytes(), readAll(filestore.get(key)));
+        assertFalse(filestore.isIndexed());
+        assertEquals(0, filestore.move());
+        Id linked = filestore.generateKey();
+        filestore.link(null, key, linked);
+        assertTrue(Files.exists(fast.toPath(linked)));
+        indexing.countDown();
+        awaitIndex(filestore);
+        assertEquals(2, filestore.getFastEntries());
+        assertEquals(2, filestore.move());
+        assertTrue(Files.exists(bulk.toPath(key)));
+    }
+}